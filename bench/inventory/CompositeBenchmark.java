@@ -0,0 +1,78 @@
+package inventory;
+
+import inventory.CompositePattern.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositeBenchmark {
+    @Param({"1000", "100000"})
+    public int products;
+
+    @Param({"2", "4"})
+    public int depth;
+
+    private ProductCategory root;
+    private String[] names;
+    private int cursor;
+    private ProductIndex.Query lowStockApparel;
+
+    @Setup
+    public void setup() {
+        root = SyntheticInventory.build(products, depth);
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = SyntheticInventory.productName((int) ((long) i * products / names.length));
+        }
+        lowStockApparel = new ProductIndex.Query();
+        lowStockApparel.types = java.util.Set.of("apparel");
+        lowStockApparel.states = java.util.Set.of("LowStock");
+        lowStockApparel.maxPrice = 50;
+        lowStockApparel.sort = ProductIndex.Sort.STOCK;
+        lowStockApparel.limit = 20;
+    }
+
+    @Benchmark
+    public Product findProductByName() {
+        cursor = (cursor + 1) & (names.length - 1);
+        return root.findProductByName(names[cursor]);
+    }
+
+    @Benchmark
+    public long getValue() {
+        return root.getValue();
+    }
+
+    @Benchmark
+    public List<Product> getAllLowStockProducts() {
+        return root.getAllLowStockProducts();
+    }
+
+    @Benchmark
+    public List<ProductComponent> searchPrefix() {
+        cursor = (cursor + 1) & (names.length - 1);
+        return root.getIndex().search(names[cursor].substring(0, names[cursor].length() - 1), 10, true, true);
+    }
+
+    // "LowStock apparel under $50, lowest stock first": the index versus a scan of every product.
+    @Benchmark
+    public List<Product> queryIndexed() {
+        return root.getIndex().getProductIndex().query(lowStockApparel, null);
+    }
+
+    @Benchmark
+    public List<Product> queryScan() {
+        List<Product> matches = new java.util.ArrayList<>();
+        for (Product p : root.getAllProducts()) {
+            if (p instanceof ApparelProduct && p.getState() instanceof StatePattern.LowStock && p.getPrice() <= 50) matches.add(p);
+        }
+        matches.sort(java.util.Comparator.comparingInt(Product::getStockLevel));
+        return matches.subList(0, Math.min(20, matches.size()));
+    }
+}
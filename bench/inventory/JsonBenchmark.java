@@ -0,0 +1,37 @@
+package inventory;
+
+import inventory.CompositePattern.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"1000", "100000"})
+    public int products;
+
+    private ProductCategory root;
+
+    @Setup
+    public void setup() {
+        root = SyntheticInventory.build(products, 3);
+    }
+
+    // The cached path: the whole body built into one byte array.
+    @Benchmark
+    public byte[] serializeToBytes() throws IOException {
+        return SimpleWebServer.InventoryApiHandler.serialize(root);
+    }
+
+    // The streaming path: constant memory, taking the tree lock once per category.
+    @Benchmark
+    public long streamWithLock() throws IOException {
+        return new InventoryJsonWriter(OutputStream.nullOutputStream(), new java.util.concurrent.locks.ReentrantReadWriteLock().readLock()).write(root);
+    }
+}
@@ -0,0 +1,63 @@
+package inventory;
+
+import inventory.CompositePattern.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"10000", "100000"})
+    public int products;
+
+    private ProductCategory root;
+    private File csv;
+    private File binary;
+
+    @Setup
+    public void setup() throws IOException {
+        root = SyntheticInventory.build(products, 3);
+        csv = File.createTempFile("inventory-bench", ".txt");
+        binary = File.createTempFile("inventory-bench", ".bin");
+        Database.writeCsv(root, csv);
+        BinarySnapshot.write(root, binary);
+    }
+
+    @TearDown
+    public void tearDown() {
+        csv.delete();
+        binary.delete();
+    }
+
+    @Benchmark
+    public void saveCsv() throws IOException {
+        Database.writeCsv(root, csv);
+    }
+
+    @Benchmark
+    public ProductCategory loadCsv() throws IOException {
+        return Database.readCsv(csv);
+    }
+
+    @Benchmark
+    public void saveBinary() throws IOException {
+        BinarySnapshot.write(root, binary);
+    }
+
+    @Benchmark
+    public ProductCategory loadBinary() throws IOException {
+        return BinarySnapshot.read(binary);
+    }
+
+    // The part of a checkpoint that runs under the tree lock.
+    @Benchmark
+    public ProductColumns captureColumns() {
+        return ProductColumns.capture(root);
+    }
+}
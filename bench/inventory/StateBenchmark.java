@@ -0,0 +1,55 @@
+package inventory;
+
+import inventory.CompositePattern.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+    private Product inStock;
+    private Product nearThreshold;
+    private Product deepStock;
+
+    @Setup
+    public void setup() {
+        ProductCategory root = SyntheticInventory.build(1000, 2);
+        inStock = new Product("Hot SKU", 100, 1_000_000, 5);
+        nearThreshold = new Product("Edge SKU", 100, 6, 5);
+        deepStock = new Product("Deep SKU", 100, Integer.MAX_VALUE, 5);
+        root.add(inStock);
+        root.add(nearThreshold);
+        root.add(deepStock);
+    }
+
+    // A plain sale with no observers registered; run with -prof gc to check it allocates nothing.
+    @Benchmark
+    public boolean sell() {
+        return deepStock.sell(1);
+    }
+
+    // Stays InStock: the common sale path without a state transition.
+    @Benchmark
+    public void sellAndRestock() {
+        inStock.sell(1);
+        inStock.restock(1);
+    }
+
+    // Crosses the threshold both ways: InStock -> LowStock -> InStock.
+    @Benchmark
+    public void sellAndRestockAcrossThreshold() {
+        nearThreshold.sell(1);
+        nearThreshold.restock(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedSellAndRestock() {
+        inStock.sell(1);
+        inStock.restock(1);
+    }
+}
@@ -0,0 +1,53 @@
+package inventory;
+
+import inventory.CompositePattern.*;
+import inventory.FactoryPattern.*;
+
+/*
+ * Builds deterministic inventories for the benchmarks: a tree of the given depth whose leaf
+ * categories hold the products, created through the regular product factories. Roughly one
+ * product in ten starts below its threshold so the low-stock paths have work to do.
+ */
+public class SyntheticInventory {
+    private static final int FAN_OUT = 8;
+
+    public static ProductCategory build(int products, int depth) {
+        IProductFactory[] factories = {
+                new ElectronicProductFactory(),
+                new ApparelProductFactory(),
+                new GenericProductFactory()
+        };
+
+        ProductCategory root = new ProductCategory("Root");
+        int leaves = 1;
+        for (int i = 1; i < depth; i++) {
+            leaves *= FAN_OUT;
+        }
+        ProductCategory[] leafCategories = new ProductCategory[leaves];
+        int[] next = {0};
+        addLevel(root, depth - 1, "C", leafCategories, next);
+
+        for (int i = 0; i < products; i++) {
+            int stock = (i % 10 == 0) ? i % 4 : 20 + i % 50;
+            Product p = factories[i % factories.length].createProduct(productName(i), 10 + i % 990, stock, 5);
+            leafCategories[i % leaves].add(p);
+        }
+        return root;
+    }
+
+    private static void addLevel(ProductCategory parent, int remaining, String prefix, ProductCategory[] leaves, int[] next) {
+        if (remaining == 0) {
+            leaves[next[0]++] = parent;
+            return;
+        }
+        for (int i = 0; i < FAN_OUT; i++) {
+            ProductCategory child = new ProductCategory(prefix + "-" + i);
+            parent.add(child);
+            addLevel(child, remaining - 1, child.getName(), leaves, next);
+        }
+    }
+
+    public static String productName(int i) {
+        return "Product-" + i;
+    }
+}
@@ -0,0 +1,171 @@
+package inventory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import inventory.CompositePattern.*;
+import inventory.FactoryPattern.*;
+
+/*
+ * Fixed-layout binary snapshot of the inventory tree:
+ *
+ *   int magic, int version, int stringCount, int categoryCount, int productCount
+ *   string table   : stringCount x (int byteLength, UTF-8 bytes)
+ *   category table : int name[categoryCount], int parent[categoryCount]   (parent = category index, -1 for root)
+ *   product table  : int name[], price[], stock[], threshold[], parent[], type[], stockVersion[]   (productCount each)
+ *
+ * Categories are written in pre-order so a parent always precedes its children.
+ */
+public class BinarySnapshot {
+    private static final int MAGIC = 0x494E5642; // "INVB"
+    private static final int VERSION = 2;
+
+    public static void write(ProductCategory root, File file) throws IOException {
+        write(ProductColumns.capture(root), file);
+    }
+
+    // The captured columns map one-to-one onto the file's tables; nothing here touches the live tree.
+    public static void write(ProductColumns columns, File file) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        int[] categoryNames = new int[columns.categoryCount];
+        for (int i = 0; i < columns.categoryCount; i++) {
+            categoryNames[i] = intern(strings, columns.categoryNames[i]);
+        }
+        int[] productNames = new int[columns.productCount];
+        int[] productTypes = new int[columns.productCount];
+        for (int i = 0; i < columns.productCount; i++) {
+            productNames[i] = intern(strings, columns.productNames[i]);
+            productTypes[i] = intern(strings, columns.productTypes[i]);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(columns.categoryCount);
+            out.writeInt(columns.productCount);
+
+            for (String s : strings.keySet()) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            writeColumn(out, categoryNames, columns.categoryCount);
+            writeColumn(out, columns.categoryParents, columns.categoryCount);
+
+            writeColumn(out, productNames, columns.productCount);
+            writeColumn(out, columns.prices, columns.productCount);
+            writeColumn(out, columns.stocks, columns.productCount);
+            writeColumn(out, columns.thresholds, columns.productCount);
+            writeColumn(out, columns.productParents, columns.productCount);
+            writeColumn(out, productTypes, columns.productCount);
+            writeColumn(out, columns.stockVersions, columns.productCount);
+        }
+    }
+
+    private static void writeColumn(DataOutputStream out, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static int intern(Map<String, Integer> strings, String s) {
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.put(s, index);
+        }
+        return index;
+    }
+
+    public static ProductCategory read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Not an inventory snapshot: " + file);
+            }
+            int version = buf.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            int stringCount = buf.getInt();
+            int categoryCount = buf.getInt();
+            int productCount = buf.getInt();
+
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                int length = buf.getInt();
+                strings[i] = decode(buf, length);
+            }
+
+            IntBuffer ints = buf.slice().asIntBuffer();
+            int[] categoryNames = column(ints, categoryCount);
+            int[] categoryParents = column(ints, categoryCount);
+            int[] productNames = column(ints, productCount);
+            int[] prices = column(ints, productCount);
+            int[] stocks = column(ints, productCount);
+            int[] thresholds = column(ints, productCount);
+            int[] productParents = column(ints, productCount);
+            int[] productTypes = column(ints, productCount);
+            int[] stockVersions = version >= 2 ? column(ints, productCount) : new int[productCount];
+
+            ProductCategory[] categories = new ProductCategory[categoryCount];
+            ProductCategory root = null;
+            for (int i = 0; i < categoryCount; i++) {
+                categories[i] = new ProductCategory(strings[categoryNames[i]]);
+                int parent = categoryParents[i];
+                if (parent < 0) {
+                    root = categories[i];
+                } else {
+                    categories[parent].add(categories[i]);
+                }
+            }
+
+            IProductFactory[] factories = new IProductFactory[stringCount];
+            for (int i = 0; i < productCount; i++) {
+                int type = productTypes[i];
+                if (factories[type] == null) {
+                    factories[type] = Database.factoryFor(strings[type]);
+                }
+                Product p = factories[type].createProduct(strings[productNames[i]], prices[i], stocks[i], thresholds[i]);
+                if (stockVersions[i] != 0) p.restoreStock(stocks[i], stockVersions[i]);
+                categories[productParents[i]].add(p);
+            }
+            return root;
+        }
+    }
+
+    private static String decode(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] column(IntBuffer ints, int count) {
+        int[] values = new int[count];
+        ints.get(values);
+        return values;
+    }
+
+    // Converts a CSV snapshot to the binary format: java inventory.BinarySnapshot [in.txt] [out.bin]
+    public static void main(String[] args) throws IOException {
+        File in = new File(args.length > 0 ? args[0] : "inventory_db.txt");
+        File out = new File(args.length > 1 ? args[1] : "inventory_db.bin");
+
+        long start = System.nanoTime();
+        ProductCategory root = Database.readCsv(in);
+        if (root == null) {
+            System.err.println("No root category found in " + in);
+            return;
+        }
+        write(root, out);
+        System.out.println("Converted " + in + " to " + out + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
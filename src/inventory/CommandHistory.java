@@ -0,0 +1,102 @@
+package inventory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import inventory.CommandPattern.CommandInterface;
+
+/*
+ * Undo window of executed commands, kept in a fixed-size ring.
+ *
+ * When the ring is full, or a command is older than maxAgeMillis, the oldest command is dropped and
+ * its slot cleared, so whatever it referenced (a removed subtree, for example) becomes collectable.
+ * Nothing is lost by dropping it: every command's effect was already written to the journal when it
+ * executed, it just can no longer be undone.
+ */
+public class CommandHistory {
+    // Rough shallow sizes on a 64-bit JVM, used only for the heap estimate in metrics().
+    private static final int COMMAND_BYTES = 48;
+    private static final int COMPONENT_BYTES = 160;
+
+    private final CommandInterface[] commands;
+    private final long[] times;
+    private final long maxAgeMillis;
+    private int oldest;
+    private int size;
+    private long evicted;
+    private long expired;
+
+    // maxAgeMillis <= 0 keeps commands until the ring overwrites them.
+    public CommandHistory(int capacity, long maxAgeMillis) {
+        this.commands = new CommandInterface[Math.max(1, capacity)];
+        this.times = new long[commands.length];
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public synchronized void push(CommandInterface cmd) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (size == commands.length) {
+            dropOldest();
+            evicted++;
+        }
+        int slot = (oldest + size) % commands.length;
+        commands[slot] = cmd;
+        times[slot] = now;
+        size++;
+    }
+
+    // Removes and returns the newest command still inside the undo window, or null.
+    public synchronized CommandInterface pop() {
+        expire(System.currentTimeMillis());
+        if (size == 0) return null;
+        int slot = (oldest + size - 1) % commands.length;
+        CommandInterface cmd = commands[slot];
+        commands[slot] = null;
+        size--;
+        return cmd;
+    }
+
+    public synchronized void clear() {
+        while (size > 0) {
+            dropOldest();
+        }
+    }
+
+    public synchronized int size() {
+        expire(System.currentTimeMillis());
+        return size;
+    }
+
+    private void expire(long now) {
+        if (maxAgeMillis <= 0) return;
+        while (size > 0 && now - times[oldest] > maxAgeMillis) {
+            dropOldest();
+            expired++;
+        }
+    }
+
+    private void dropOldest() {
+        commands[oldest] = null;
+        oldest = (oldest + 1) % commands.length;
+        size--;
+    }
+
+    public synchronized Map<String, Object> metrics() {
+        long now = System.currentTimeMillis();
+        expire(now);
+        long retained = 0;
+        for (int i = 0; i < size; i++) {
+            retained += commands[(oldest + i) % commands.length].retainedComponents();
+        }
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("entries", size);
+        metrics.put("capacity", commands.length);
+        metrics.put("maxAgeSeconds", maxAgeMillis / 1000);
+        metrics.put("oldestAgeSeconds", size == 0 ? 0 : (now - times[oldest]) / 1000);
+        metrics.put("evicted", evicted);
+        metrics.put("expired", expired);
+        metrics.put("retainedComponents", retained);
+        metrics.put("estimatedBytes", (long) commands.length * 12 + (long) size * COMMAND_BYTES + retained * COMPONENT_BYTES);
+        return metrics;
+    }
+}
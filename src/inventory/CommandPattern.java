@@ -1,27 +1,39 @@
 package inventory;
 
 import inventory.CompositePattern.Product;
+import java.util.List;
+import java.util.Map;
 
 public class CommandPattern {
+    private static final Log LOG = Log.get(CommandPattern.class);
 
     public interface CommandInterface {
         void execute();
         void undo();
+
+        default void journal(List<String> records, boolean undone) { }
+
+        // Inventory components kept reachable only through this command, e.g. a removed subtree.
+        default long retainedComponents() { return 0; }
     }
 
     public abstract static class AddCommand implements CommandInterface {
         @Override
         public void execute() {
             performExecute();
-            String log = getExecuteLog();
-            if (log != null) System.out.println("Command: " + log);
+            if (LOG.isDebugEnabled()) {
+                String log = getExecuteLog();
+                if (log != null) LOG.debug("Command: {}", log);
+            }
         }
 
         @Override
         public void undo() {
             performUndo();
-            String log = getUndoLog();
-            if (log != null) System.out.println("Undo: " + log);
+            if (LOG.isDebugEnabled()) {
+                String log = getUndoLog();
+                if (log != null) LOG.debug("Undo: {}", log);
+            }
         }
 
         protected abstract void performExecute();
@@ -34,15 +46,19 @@ public class CommandPattern {
         @Override
         public void execute() {
             performExecute();
-            String log = getExecuteLog();
-            if (log != null) System.out.println("Command: " + log);
+            if (LOG.isDebugEnabled()) {
+                String log = getExecuteLog();
+                if (log != null) LOG.debug("Command: {}", log);
+            }
         }
 
         @Override
         public void undo() {
             performUndo();
-            String log = getUndoLog();
-            if (log != null) System.out.println("Undo: " + log);
+            if (LOG.isDebugEnabled()) {
+                String log = getUndoLog();
+                if (log != null) LOG.debug("Undo: {}", log);
+            }
         }
 
         protected abstract void performExecute();
@@ -65,17 +81,28 @@ public class CommandPattern {
             product.restock(quantity);
         }
 
+        // Fails if the restocked units have since been sold, rather than taking the stock below zero.
         @Override
         protected void performUndo() {
-            int current = product.getStockLevel();
-            product.setStockLevel(current - quantity);
+            if (!product.trySell(quantity)) {
+                throw new IllegalStateException("Cannot undo restock of " + quantity + " " + product.getName()
+                        + ": only " + product.getStockLevel() + " left in stock.");
+            }
         }
 
+        public Product getProduct() { return product; }
+        public int getQuantity() { return quantity; }
+
         @Override
         protected String getExecuteLog() {
             return null; // Logging handled in product.restock()
         }
 
+        @Override
+        public void journal(List<String> records, boolean undone) {
+            records.add(Database.stockRecord(product));
+        }
+
         @Override
         protected String getUndoLog() {
             return "Removed " + quantity + " from " + product.getName();
@@ -85,6 +112,7 @@ public class CommandPattern {
     public static class RemoveStockCommand extends RemoveCommand {
         private Product product;
         private int quantity;
+        private boolean sold;
 
         public RemoveStockCommand(Product product, int quantity) {
             this.product = product;
@@ -93,25 +121,141 @@ public class CommandPattern {
 
         @Override
         protected void performExecute() {
-            product.sell(quantity);
+            sold = product.sell(quantity);
         }
 
         @Override
         protected void performUndo() {
-            product.restock(quantity);
+            if (sold) {
+                product.restock(quantity);
+            }
         }
 
+        public boolean wasSold() {
+            return sold;
+        }
+
+        public Product getProduct() { return product; }
+        public int getQuantity() { return quantity; }
+
         @Override
         protected String getExecuteLog() {
             return null; // Logging handled in product.sell()
         }
 
+        @Override
+        public void journal(List<String> records, boolean undone) {
+            records.add(Database.stockRecord(product));
+        }
+
         @Override
         protected String getUndoLog() {
             return "Added back " + quantity + " to " + product.getName();
         }
     }
 
+    // Runs a group of commands as one unit: a single history entry, undone in reverse order.
+    // A group made only of stock movements is undone from the net change per product instead, so
+    // undoing thousands of movements costs one update per product touched.
+    public static class MacroCommand implements CommandInterface {
+        private final List<CommandInterface> commands;
+        private Map<Product, Integer> netStock;
+
+        public MacroCommand(List<CommandInterface> commands) {
+            this.commands = new java.util.ArrayList<>(commands);
+        }
+
+        public List<CommandInterface> getCommands() {
+            return java.util.Collections.unmodifiableList(commands);
+        }
+
+        @Override
+        public void execute() {
+            for (CommandInterface cmd : commands) {
+                cmd.execute();
+            }
+            netStock = netStockChanges();
+        }
+
+        // Net stock change per product, or null if the group contains anything but stock movements.
+        private Map<Product, Integer> netStockChanges() {
+            Map<Product, Integer> net = new java.util.LinkedHashMap<>();
+            for (CommandInterface cmd : commands) {
+                if (cmd instanceof AddStockCommand) {
+                    AddStockCommand add = (AddStockCommand) cmd;
+                    net.merge(add.getProduct(), add.getQuantity(), Integer::sum);
+                } else if (cmd instanceof RemoveStockCommand) {
+                    RemoveStockCommand remove = (RemoveStockCommand) cmd;
+                    net.merge(remove.getProduct(), remove.wasSold() ? -remove.getQuantity() : 0, Integer::sum);
+                } else {
+                    return null;
+                }
+            }
+            return net;
+        }
+
+        // Either undoes the whole group or, if part of it cannot be undone, leaves it applied and throws.
+        @Override
+        public void undo() {
+            if (netStock != null) {
+                undoNetStock();
+                return;
+            }
+            for (int i = commands.size() - 1; i >= 0; i--) {
+                try {
+                    commands.get(i).undo();
+                } catch (IllegalStateException e) {
+                    for (int j = i + 1; j < commands.size(); j++) {
+                        commands.get(j).execute();
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        // Takes back net restocks first, since those are the changes that can fail, then returns net sales.
+        private void undoNetStock() {
+            List<Map.Entry<Product, Integer>> removed = new java.util.ArrayList<>();
+            for (Map.Entry<Product, Integer> change : netStock.entrySet()) {
+                if (change.getValue() <= 0) continue;
+                Product product = change.getKey();
+                if (!product.trySell(change.getValue())) {
+                    for (Map.Entry<Product, Integer> done : removed) {
+                        done.getKey().addStock(done.getValue());
+                    }
+                    throw new IllegalStateException("Cannot undo restock of " + change.getValue() + " " + product.getName()
+                            + ": only " + product.getStockLevel() + " left in stock.");
+                }
+                removed.add(change);
+            }
+            for (Map.Entry<Product, Integer> change : netStock.entrySet()) {
+                if (change.getValue() < 0) change.getKey().addStock(-change.getValue());
+            }
+        }
+
+        @Override
+        public void journal(List<String> records, boolean undone) {
+            if (netStock != null) {
+                for (Product product : netStock.keySet()) {
+                    records.add(Database.stockRecord(product));
+                }
+                return;
+            }
+            for (CommandInterface cmd : commands) {
+                cmd.journal(records, undone);
+            }
+        }
+
+        @Override
+        public long retainedComponents() {
+            long retained = 0;
+            for (CommandInterface cmd : commands) {
+                retained += cmd.retainedComponents();
+            }
+            return retained;
+        }
+    }
+
     public static class AddCategoryCommand extends AddCommand {
         private CompositePattern.ProductCategory parent;
         private CompositePattern.ProductCategory newCategory;
@@ -124,7 +268,10 @@ public class CommandPattern {
 
         @Override
         protected void performExecute() {
-            this.newCategory = new CompositePattern.ProductCategory(name);
+            // Redo puts back the same category object the first execution created.
+            if (newCategory == null) {
+                this.newCategory = new CompositePattern.ProductCategory(name);
+            }
             parent.add(newCategory);
         }
 
@@ -135,6 +282,12 @@ public class CommandPattern {
             }
         }
 
+        @Override
+        public void journal(List<String> records, boolean undone) {
+            if (newCategory == null) return;
+            records.add(undone ? Database.removeRecord(newCategory) : Database.categoryRecord(newCategory, parent.getName()));
+        }
+
         @Override
         protected String getExecuteLog() {
             return "Created Category '" + name + "' under '" + parent.getName() + "'";
@@ -190,12 +343,12 @@ public class CommandPattern {
 
         @Override
         protected void performExecute() {
-            System.out.println("DEBUG: Executing RemoveProductCommand for " + target.getName());
+            LOG.debug("Executing RemoveProductCommand for {}", target.getName());
             index = parent.getChildren().indexOf(target);
             if (index == -1) {
-                System.out.println("DEBUG: Target product not found in parent's children list");
+                LOG.debug("Target product not found in parent's children list");
             } else {
-                System.out.println("DEBUG: Target found at index " + index + ". removing");
+                LOG.debug("Target found at index {}. removing", index);
             }
             parent.remove(target);
         }
@@ -203,12 +356,22 @@ public class CommandPattern {
         @Override
         protected void performUndo() {
             if (index >= 0 && index <= parent.getChildren().size()) {
-                parent.getChildren().add(index, target);
+                parent.add(index, target);
             } else {
                 parent.add(target);
             }
         }
 
+        @Override
+        public void journal(List<String> records, boolean undone) {
+            records.add(undone ? Database.productRecord(target, parent.getName()) : Database.removeRecord(target));
+        }
+
+        @Override
+        public long retainedComponents() {
+            return target.getParent() == null ? 1 : 0;
+        }
+
         @Override
         protected String getExecuteLog() {
             return "Removed Product '" + target.getName() + "'";
@@ -232,12 +395,12 @@ public class CommandPattern {
 
         @Override
         protected void performExecute() {
-            System.out.println("DEBUG: Executing RemoveCategoryCommand for " + target.getName());
+            LOG.debug("Executing RemoveCategoryCommand for {}", target.getName());
             index = parent.getChildren().indexOf(target);
             if (index == -1) {
-                System.out.println("DEBUG: Target category not found in parent's children list");
+                LOG.debug("Target category not found in parent's children list");
             } else {
-                System.out.println("DEBUG: Target found at index " + index + ". removing");
+                LOG.debug("Target found at index {}. removing", index);
             }
             parent.remove(target);
         }
@@ -245,12 +408,29 @@ public class CommandPattern {
         @Override
         protected void performUndo() {
             if (index >= 0 && index <= parent.getChildren().size()) {
-                parent.getChildren().add(index, target);
+                parent.add(index, target);
             } else {
                 parent.add(target);
             }
         }
 
+        @Override
+        public void journal(List<String> records, boolean undone) {
+            if (undone) {
+                Database.subtreeRecords(records, target, parent.getName());
+            } else {
+                records.add(Database.removeRecord(target));
+            }
+        }
+
+        // A detached category keeps its own index, so its size is known without walking it.
+        @Override
+        public long retainedComponents() {
+            if (target.getParent() != null) return 0;
+            CompositePattern.CatalogIndex index = target.getIndex();
+            return index.productCount() + index.categoryCount();
+        }
+
         @Override
         protected String getExecuteLog() {
             return "Removed Category '" + target.getName() + "'";
@@ -274,12 +454,12 @@ public class CommandPattern {
 
         @Override
         protected void performExecute() {
-            System.out.println("DEBUG: Executing RemoveProductTypeCommand for " + typeName);
+            LOG.debug("Executing RemoveProductTypeCommand for {}", typeName);
             this.factory = factories.get(typeName.toLowerCase());
             if (this.factory == null) {
-                System.out.println("DEBUG: Factory for " + typeName + " not found in map");
+                LOG.debug("Factory for {} not found in map", typeName);
             } else {
-                System.out.println("DEBUG: Factory found, removing");
+                LOG.debug("Factory found, removing");
             }
             factories.remove(typeName.toLowerCase());
         }
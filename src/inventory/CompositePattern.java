@@ -1,36 +1,786 @@
 package inventory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import inventory.StatePattern.*;
 import inventory.ObserverPattern.ObserverInterface;
+import inventory.ObserverPattern.StructureObserver;
 
 public class CompositePattern {
 
+    private static final Log LOG = Log.get(CompositePattern.class);
+    // Counts categories created, so each starts its versions above those of every earlier one.
+    private static final AtomicLong CATEGORIES = new AtomicLong();
+
+    // Observer lists are copied on write and null when empty, so notifying reads one volatile field.
+    private static <T> List<T> withAdded(List<T> list, T item) {
+        List<T> updated = list == null ? new ArrayList<>() : new ArrayList<>(list);
+        updated.add(item);
+        return updated;
+    }
+
+    private static <T> List<T> withRemoved(List<T> list, T item) {
+        if (list == null) return null;
+        List<T> updated = new ArrayList<>(list);
+        updated.remove(item);
+        return updated.isEmpty() ? null : updated;
+    }
+
     public interface ProductComponent {
+        String getName();
+        ProductCategory getParent();
         void display();
-        int getValue();
+        long getValue();
         void registerObs(ObserverInterface obs);
         void removeObs(ObserverInterface obs);
     }
 
+    // Case-folded name lookups shared by every category of one tree, kept current by add/remove.
+    public static class CatalogIndex {
+        private final ProductNames products = new ProductNames();
+        private final Map<String, ProductCategory> categories = new HashMap<>();
+        // Products in LowStock/OutOfStock, furthest below threshold first. Ordered by the deficit
+        // recorded at insertion so the set stays consistent while the live stock level changes.
+        private final TreeSet<Product> lowStock = new TreeSet<>(
+                Comparator.comparingInt(Product::lowStockDeficit).reversed()
+                        .thenComparingLong(Product::serial));
+
+        // Created by the first product query, so loading and editing a catalog nobody queries pays nothing.
+        private volatile ProductIndex sorted;
+        private volatile boolean sortedFiled;
+        // The same case-folded names in order, for prefix search. Sorted by the first search, not on
+        // the add path, and dropped for the next search to rebuild once their deltas grow large.
+        private volatile SortedNames<Product> productNames;
+        private volatile SortedNames<ProductCategory> categoryNames;
+
+        private static String key(String name) {
+            return name.toLowerCase(Locale.ROOT);
+        }
+
+        // key(name).hashCode(), without building the key when the name is ASCII.
+        static int keyHash(String name) {
+            int hash = 0;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c >= 0x80) return key(name).hashCode();
+                hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+            }
+            return hash;
+        }
+
+        public Product findProduct(String name) {
+            return name == null ? null : products.get(key(name));
+        }
+
+        public ProductCategory findCategory(String name) {
+            return name == null ? null : categories.get(key(name));
+        }
+
+        // Categories are identified in the JSON API by the hash of their name; a scan over categories only.
+        public ProductCategory findCategoryById(int id) {
+            for (ProductCategory cat : categories.values()) {
+                if (cat.getName().hashCode() == id) return cat;
+            }
+            return null;
+        }
+
+        /*
+         * Up to limit products and categories whose names start with prefix, ignoring case, in
+         * alphabetical order (an exact match first): O(log n + limit) however large the catalog.
+         */
+        public List<ProductComponent> search(String prefix, int limit, boolean includeProducts, boolean includeCategories) {
+            String from = key(prefix);
+            if (productNames == null || categoryNames == null) sortNames();
+            java.util.Iterator<Map.Entry<String, Product>> ps = includeProducts
+                    ? productNames.from(from) : Collections.emptyIterator();
+            java.util.Iterator<Map.Entry<String, ProductCategory>> cs = includeCategories
+                    ? categoryNames.from(from) : Collections.emptyIterator();
+            Map.Entry<String, Product> p = nextMatch(ps, from);
+            Map.Entry<String, ProductCategory> c = nextMatch(cs, from);
+            List<ProductComponent> matches = new ArrayList<>(Math.min(limit, 64));
+            while (matches.size() < limit && (p != null || c != null)) {
+                if (c == null || (p != null && p.getKey().compareTo(c.getKey()) <= 0)) {
+                    matches.add(p.getValue());
+                    p = nextMatch(ps, from);
+                } else {
+                    matches.add(c.getValue());
+                    c = nextMatch(cs, from);
+                }
+            }
+            return matches;
+        }
+
+        private synchronized void sortNames() {
+            if (productNames == null) productNames = new SortedNames<>(products.values());
+            if (categoryNames == null) categoryNames = new SortedNames<>(categories.values());
+        }
+
+        private static <T> Map.Entry<String, T> nextMatch(java.util.Iterator<Map.Entry<String, T>> it, String prefix) {
+            if (!it.hasNext()) return null;
+            Map.Entry<String, T> e = it.next();
+            return e.getKey().startsWith(prefix) ? e : null;
+        }
+
+        public int productCount() { return products.size(); }
+        public int categoryCount() { return categories.size(); }
+        public int lowStockCount() {
+            synchronized (lowStock) {
+                return lowStock.size();
+            }
+        }
+
+        public List<Product> getLowStock(int offset, int limit) {
+            synchronized (lowStock) {
+                return pageLowStock(offset, limit);
+            }
+        }
+
+        private List<Product> pageLowStock(int offset, int limit) {
+            List<Product> page = new ArrayList<>(Math.min(limit, lowStock.size()));
+            int skipped = 0;
+            for (Product p : lowStock) {
+                if (page.size() >= limit) break;
+                if (skipped++ < offset) continue;
+                page.add(p);
+            }
+            return page;
+        }
+
+        public ProductIndex getProductIndex() {
+            return sortedFiled ? sorted : createProductIndex();
+        }
+
+        // Changes start marking their products pending as soon as the index is published, and every
+        // product is read after that, so a change racing with the build is caught by one or the other.
+        private synchronized ProductIndex createProductIndex() {
+            if (!sortedFiled) {
+                ProductIndex created = new ProductIndex();
+                sorted = created;
+                created.fileAll(products.values());
+                sortedFiled = true;
+            }
+            return sorted;
+        }
+
+        void reindex(Product p) {
+            updateLowStock(p);
+            ProductIndex current = sorted;
+            if (current != null) current.update(p);
+        }
+
+        void updateLowStock(Product p) {
+            // Most changes leave an unlisted product in stock; those skip the lock. The flag is raised
+            // below before the state is read, and the state is written before this check reads the
+            // flag, so a racing change either sees the flag or is seen by the locked path.
+            if (!p.lowStockIndexed() && !p.isLowStock()) return;
+            synchronized (lowStock) {
+                if (p.lowStockIndexed()) {
+                    lowStock.remove(p);
+                }
+                p.setLowStockIndexed(true);
+                if (p.isLowStock()) {
+                    p.setLowStockDeficit(p.getThreshold() - p.getStockLevel());
+                    lowStock.add(p);
+                } else {
+                    p.setLowStockIndexed(false);
+                }
+            }
+        }
+
+        void register(ProductComponent component) {
+            if (component instanceof Product) {
+                if (products.add((Product) component) && productNames != null
+                        && !productNames.add(key(component.getName()), (Product) component)) productNames = null;
+                updateLowStock((Product) component);
+                ProductIndex current = sorted;
+                if (current != null) current.update((Product) component);
+            } else if (component instanceof ProductCategory) {
+                String key = key(component.getName());
+                if (categories.putIfAbsent(key, (ProductCategory) component) == null && categoryNames != null
+                        && !categoryNames.add(key, (ProductCategory) component)) categoryNames = null;
+            }
+        }
+
+        void unregister(ProductComponent component) {
+            if (component instanceof Product) {
+                Product p = (Product) component;
+                if (products.remove(p) && productNames != null
+                        && !productNames.remove(key(p.getName()), p)) productNames = null;
+                synchronized (lowStock) {
+                    if (p.lowStockIndexed()) {
+                        lowStock.remove(p);
+                        p.setLowStockIndexed(false);
+                    }
+                }
+                ProductIndex current = sorted;
+                if (current != null) current.remove(p);
+            } else if (component instanceof ProductCategory) {
+                if (categories.remove(key(component.getName()), component) && categoryNames != null
+                        && !categoryNames.remove(key(component.getName()), (ProductCategory) component)) categoryNames = null;
+            }
+        }
+    }
+
+    /*
+     * Products by case-folded name in one open-addressed array, with each name's hash alongside so
+     * probing and resizing never touch the products: the table holds no keys or entries, and a hash
+     * match is confirmed against the stored name bytes. Like the maps it replaces, it is read under the read lock
+     * and changed under the write lock.
+     */
+    static final class ProductNames {
+        private Product[] table = new Product[16];
+        private int[] hashes = new int[16];
+        private int size;
+
+        int size() { return size; }
+
+        Product get(String key) {
+            int hash = key.hashCode();
+            int mask = table.length - 1;
+            for (int i = home(hash, mask); table[i] != null; i = (i + 1) & mask) {
+                if (hashes[i] == hash && table[i].keyEquals(key)) return table[i];
+            }
+            return null;
+        }
+
+        // Adds p unless it, or another product with the same case-folded name, is already present.
+        boolean add(Product p) {
+            int hash = p.keyHash();
+            int mask = table.length - 1;
+            int i = home(hash, mask);
+            for (; table[i] != null; i = (i + 1) & mask) {
+                if (table[i] == p) return false;
+                if (hashes[i] == hash && Product.compareKeys(table[i], p) == 0) return false;
+            }
+            table[i] = p;
+            hashes[i] = hash;
+            if (++size * 2 > table.length) resize(table.length * 2);
+            return true;
+        }
+
+        boolean remove(Product p) {
+            int mask = table.length - 1;
+            int i = home(p.keyHash(), mask);
+            while (table[i] != p) {
+                if (table[i] == null) return false;
+                i = (i + 1) & mask;
+            }
+            // Moves later entries of the same probe run back into the gap, so no lookup stops short.
+            table[i] = null;
+            for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+                if (((j - home(hashes[j], mask)) & mask) >= ((j - i) & mask)) {
+                    table[i] = table[j];
+                    hashes[i] = hashes[j];
+                    table[j] = null;
+                    i = j;
+                }
+            }
+            size--;
+            return true;
+        }
+
+        List<Product> values() {
+            List<Product> values = new ArrayList<>(size);
+            for (Product p : table) {
+                if (p != null) values.add(p);
+            }
+            return values;
+        }
+
+        private void resize(int capacity) {
+            Product[] oldTable = table;
+            int[] oldHashes = hashes;
+            table = new Product[capacity];
+            hashes = new int[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldTable.length; j++) {
+                if (oldTable[j] == null) continue;
+                int i = home(oldHashes[j], mask);
+                while (table[i] != null) i = (i + 1) & mask;
+                table[i] = oldTable[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+
+        private static int home(int hash, int mask) {
+            int h = hash * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+
+    /*
+     * Components in one array sorted by case-folded name, searched by binary search. Product names
+     * are compared on their stored bytes, so neither the sort nor a search builds keys for them; only
+     * the entries a search returns carry one. Names
+     * added after the sort go to a small tree and removed ones to a set, and iteration merges them
+     * in; add and remove return false once those deltas outgrow an eighth of the array, telling the
+     * owner to sort afresh.
+     */
+    static final class SortedNames<T extends ProductComponent> {
+        private final Object[] values;
+        private final TreeMap<String, T> added = new TreeMap<>();
+        private final Set<T> removed = new java.util.HashSet<>();
+
+        SortedNames(java.util.Collection<T> components) {
+            values = components.toArray();
+            Arrays.sort(values, SortedNames::compareKeys);
+        }
+
+        private static int compareKeys(Object a, Object b) {
+            if (a instanceof Product && b instanceof Product) return Product.compareKeys((Product) a, (Product) b);
+            return CatalogIndex.key(((ProductComponent) a).getName()).compareTo(CatalogIndex.key(((ProductComponent) b).getName()));
+        }
+
+        private int compareKeyAt(int i, String key) {
+            T component = at(i);
+            if (component instanceof Product) return ((Product) component).compareKey(key);
+            return CatalogIndex.key(component.getName()).compareTo(key);
+        }
+
+        boolean add(String key, T value) {
+            if (!removed.remove(value)) added.put(key, value);
+            return !outgrown();
+        }
+
+        boolean remove(String key, T value) {
+            if (!added.remove(key, value)) removed.add(value);
+            return !outgrown();
+        }
+
+        private boolean outgrown() {
+            return added.size() + removed.size() > 1024 + values.length / 8;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T at(int i) {
+            return (T) values[i];
+        }
+
+        private String keyAt(int i) {
+            return CatalogIndex.key(at(i).getName());
+        }
+
+        // Entries from the first key at or after from, in key order.
+        java.util.Iterator<Map.Entry<String, T>> from(String from) {
+            int low = 0, high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareKeyAt(mid, from) < 0) low = mid + 1; else high = mid;
+            }
+            int start = low;
+            java.util.Iterator<Map.Entry<String, T>> later = added.tailMap(from, true).entrySet().iterator();
+            return new java.util.Iterator<Map.Entry<String, T>>() {
+                private int i = skipRemoved(start);
+                private String key = i < values.length ? keyAt(i) : null;
+                private Map.Entry<String, T> nextAdded = later.hasNext() ? later.next() : null;
+
+                @Override
+                public boolean hasNext() { return key != null || nextAdded != null; }
+
+                @Override
+                public Map.Entry<String, T> next() {
+                    if (nextAdded != null && (key == null || nextAdded.getKey().compareTo(key) < 0)) {
+                        Map.Entry<String, T> e = nextAdded;
+                        nextAdded = later.hasNext() ? later.next() : null;
+                        return e;
+                    }
+                    if (key == null) throw new java.util.NoSuchElementException();
+                    Map.Entry<String, T> e = new java.util.AbstractMap.SimpleImmutableEntry<>(key, at(i));
+                    i = skipRemoved(i + 1);
+                    key = i < values.length ? keyAt(i) : null;
+                    return e;
+                }
+            };
+        }
+
+        private int skipRemoved(int i) {
+            while (i < values.length && removed.contains(values[i])) i++;
+            return i;
+        }
+    }
+
+    /*
+     * Products ordered by price, stock level and stock/threshold ratio, kept separately for each
+     * product type and state. A query reads only the segments its type and state filters select,
+     * each from the first key in range, and merges them in order: O(s log n + k log s) for s segments
+     * and k products read. Range filters on keys other than the sort key are checked per product.
+     *
+     * As with the low-stock set, each product is filed under the values recorded when it was last
+     * indexed. A change to its stock, price, threshold or state only marks it pending (one CAS on the
+     * sale path); each query first re-files the pending products, so it sees every change completed
+     * before it started, and a hot product sold many times between queries is re-filed once. Products
+     * joining the tree are marked the same way, and the index itself is only built, from every product
+     * at once, when the first query arrives.
+     */
+    public static class ProductIndex {
+        public enum Sort { PRICE, STOCK, RATIO }
+
+        public static final String[] TYPES = { "electronics", "apparel", "generic" };
+        private static final String[] STATES = { "OutOfStock", "LowStock", "InStock" };
+        private static final Sort[] SORTS = Sort.values();
+
+        private static final class Key implements Comparable<Key> {
+            final double value;
+            final long serial;
+
+            Key(double value, long serial) {
+                this.value = value;
+                this.serial = serial;
+            }
+
+            @Override
+            public int compareTo(Key other) {
+                int c = Double.compare(value, other.value);
+                return c != 0 ? c : Long.compare(serial, other.serial);
+            }
+        }
+
+        public static class Query {
+            public Set<String> types;      // null for every type
+            public Set<String> states;     // null for every state
+            public Sort sort = Sort.PRICE;
+            public boolean descending;
+            public double minPrice = Double.NEGATIVE_INFINITY, maxPrice = Double.POSITIVE_INFINITY;
+            public double minStock = Double.NEGATIVE_INFINITY, maxStock = Double.POSITIVE_INFINITY;
+            public double minRatio = Double.NEGATIVE_INFINITY, maxRatio = Double.POSITIVE_INFINITY;
+            public int offset;
+            public int limit = 50;
+
+            double min(Sort s) { return s == Sort.PRICE ? minPrice : s == Sort.STOCK ? minStock : minRatio; }
+            double max(Sort s) { return s == Sort.PRICE ? maxPrice : s == Sort.STOCK ? maxStock : maxRatio; }
+
+            boolean matches(Product p) {
+                for (Sort s : SORTS) {
+                    double v = ProductIndex.key(s, p.indexedPrice(), p.indexedStock(), p.indexedThreshold());
+                    if (v < min(s) || v > max(s)) return false;
+                }
+                return true;
+            }
+        }
+
+        // [segment][sort]; segment = type * STATES.length + state band.
+        @SuppressWarnings("unchecked")
+        private final ConcurrentSkipListMap<Key, Product>[][] segments = (ConcurrentSkipListMap<Key, Product>[][]) new ConcurrentSkipListMap<?, ?>[TYPES.length * STATES.length][SORTS.length];
+
+        private final java.util.concurrent.ConcurrentLinkedQueue<Product> pending = new java.util.concurrent.ConcurrentLinkedQueue<>();
+
+        public ProductIndex() {
+            for (ConcurrentSkipListMap<Key, Product>[] segment : segments) {
+                for (int i = 0; i < SORTS.length; i++) segment[i] = new ConcurrentSkipListMap<>();
+            }
+        }
+
+        public static int typeOf(Product p) {
+            if (p instanceof ElectronicProduct) return 0;
+            return p instanceof ApparelProduct ? 1 : 2;
+        }
+
+        private static double key(Sort sort, int price, int stock, int threshold) {
+            switch (sort) {
+                case PRICE: return price;
+                case STOCK: return stock;
+                default: return threshold > 0 ? (double) stock / threshold : Double.POSITIVE_INFINITY;
+            }
+        }
+
+        void update(Product p) {
+            if (p.markIndexPending()) pending.offer(p);
+        }
+
+        private void drainPending() {
+            Product p;
+            while ((p = pending.poll()) != null) {
+                // Skip products that have since left this tree; remove() already cleared their flag,
+                // which may now mark them pending in another index.
+                ProductCategory parent = p.parent;
+                if (parent == null || parent.index.sorted != this) continue;
+                p.clearIndexPending();
+                refile(p);
+            }
+        }
+
+        // Files p under its current values, moving only the entries whose key changed.
+        void refile(Product p) {
+            synchronized (p) {
+                // Read under the lock, so whichever refile runs last records the latest values.
+                int price = p.getPrice();
+                int stock = p.getStockLevel();
+                int threshold = p.getThreshold();
+                int segment = typeOf(p) * STATES.length + StatePattern.band(p.getState());
+                int old = p.indexedSegment();
+                for (Sort s : SORTS) {
+                    double to = key(s, price, stock, threshold);
+                    if (old >= 0) {
+                        double from = key(s, p.indexedPrice(), p.indexedStock(), p.indexedThreshold());
+                        if (old == segment && from == to) continue;
+                        segments[old][s.ordinal()].remove(new Key(from, p.serial()));
+                    }
+                    segments[segment][s.ordinal()].put(new Key(to, p.serial()), p);
+                }
+                p.setIndexed(segment, price, stock, threshold);
+            }
+        }
+
+        // Files every product of a new index. Each skip list is filled from its sorted entries in
+        // descending order, so every insert lands at the head instead of searching a random position.
+        void fileAll(java.util.Collection<Product> products) {
+            List<List<Product>> bySegment = new ArrayList<>();
+            for (int i = 0; i < segments.length; i++) bySegment.add(new ArrayList<>());
+            for (Product p : products) {
+                int segment;
+                synchronized (p) {
+                    segment = typeOf(p) * STATES.length + StatePattern.band(p.getState());
+                    p.setIndexed(segment, p.getPrice(), p.getStockLevel(), p.getThreshold());
+                }
+                bySegment.get(segment).add(p);
+            }
+            for (int segment = 0; segment < segments.length; segment++) {
+                List<Product> filed = bySegment.get(segment);
+                for (Sort s : SORTS) {
+                    List<Map.Entry<Key, Product>> run = new ArrayList<>(filed.size());
+                    for (Product p : filed) {
+                        run.add(new java.util.AbstractMap.SimpleImmutableEntry<>(new Key(key(s, p.indexedPrice(), p.indexedStock(), p.indexedThreshold()), p.serial()), p));
+                    }
+                    run.sort(Map.Entry.comparingByKey());
+                    ConcurrentSkipListMap<Key, Product> sorted = segments[segment][s.ordinal()];
+                    for (int i = run.size() - 1; i >= 0; i--) {
+                        sorted.put(run.get(i).getKey(), run.get(i).getValue());
+                    }
+                }
+            }
+        }
+
+        void remove(Product p) {
+            synchronized (p) {
+                p.clearIndexPending();
+                int segment = p.indexedSegment();
+                if (segment < 0) return;
+                for (Sort s : SORTS) {
+                    segments[segment][s.ordinal()].remove(new Key(key(s, p.indexedPrice(), p.indexedStock(), p.indexedThreshold()), p.serial()));
+                }
+                p.setIndexed(-1, 0, 0, 0);
+            }
+        }
+
+        // Up to query.limit products after skipping query.offset, in the requested order; products
+        // rejected by accept (null accepts all) are skipped without counting towards the offset.
+        public List<Product> query(Query query, java.util.function.Predicate<Product> accept) {
+            drainPending();
+            Comparator<Map.Entry<Key, Product>> order = Map.Entry.comparingByKey();
+            if (query.descending) order = order.reversed();
+            java.util.PriorityQueue<PeekingIterator> heads = new java.util.PriorityQueue<>(Comparator.comparing(PeekingIterator::peek, order));
+            Key from = new Key(query.min(query.sort), Long.MIN_VALUE);
+            Key to = new Key(query.max(query.sort), Long.MAX_VALUE);
+            for (int type = 0; type < TYPES.length; type++) {
+                if (query.types != null && !query.types.contains(TYPES[type])) continue;
+                for (int state = 0; state < STATES.length; state++) {
+                    if (query.states != null && !query.states.contains(STATES[state])) continue;
+                    NavigableMap<Key, Product> range = segments[type * STATES.length + state][query.sort.ordinal()].subMap(from, true, to, true);
+                    PeekingIterator it = new PeekingIterator((query.descending ? range.descendingMap() : range).entrySet().iterator());
+                    if (it.peek() != null) heads.add(it);
+                }
+            }
+
+            List<Product> page = new ArrayList<>(Math.min(query.limit, 1024));
+            Set<Product> seen = new java.util.HashSet<>();
+            int skipped = 0;
+            while (page.size() < query.limit && !heads.isEmpty()) {
+                PeekingIterator it = heads.poll();
+                Product p = it.next().getValue();
+                if (it.peek() != null) heads.add(it);
+                if (!seen.add(p) || !query.matches(p) || (accept != null && !accept.test(p))) continue;
+                if (skipped++ < query.offset) continue;
+                page.add(p);
+            }
+            return page;
+        }
+
+        private static final class PeekingIterator implements java.util.Iterator<Map.Entry<Key, Product>> {
+            private final java.util.Iterator<Map.Entry<Key, Product>> it;
+            private Map.Entry<Key, Product> next;
+
+            PeekingIterator(java.util.Iterator<Map.Entry<Key, Product>> it) {
+                this.it = it;
+                this.next = it.hasNext() ? it.next() : null;
+            }
+
+            Map.Entry<Key, Product> peek() { return next; }
+
+            @Override
+            public boolean hasNext() { return next != null; }
+
+            @Override
+            public Map.Entry<Key, Product> next() {
+                Map.Entry<Key, Product> current = next;
+                next = it.hasNext() ? it.next() : null;
+                return current;
+            }
+        }
+    }
+
     public static class ProductCategory implements ProductComponent {
         private String name;
         private List<ProductComponent> children = new ArrayList<>();
+        private ProductCategory parent;
+        // Shared by every category of the tree; created by the first add or lookup on a new category.
+        private volatile CatalogIndex index;
+        // Every sale below a category adds to these on it and all its ancestors, so they are striped
+        // rather than single atomics that all selling threads would contend on at the root.
+        private final LongAdder value = new LongAdder();
+        private final LongAdder changes = new LongAdder();
+        private final long versionBase = CATEGORIES.incrementAndGet() << 32;
+        private final AtomicLong productCount = new AtomicLong();
+        private volatile List<ObserverInterface> observers;
+        private volatile List<StructureObserver> structureObservers;
 
         public ProductCategory(String name) {
             this.name = name;
         }
 
+        @Override
         public String getName() { return name; }
-        public List<ProductComponent> getChildren() { return children; }
+        @Override
+        public ProductCategory getParent() { return parent; }
+        public List<ProductComponent> getChildren() { return Collections.unmodifiableList(children); }
+        public CatalogIndex getIndex() {
+            CatalogIndex current = index;
+            return current != null ? current : createIndex();
+        }
+
+        // Only a category that was never attached and never had anything added gets here, so it indexes
+        // just itself.
+        private synchronized CatalogIndex createIndex() {
+            if (index == null) {
+                CatalogIndex created = new CatalogIndex();
+                created.register(this);
+                index = created;
+            }
+            return index;
+        }
 
         public void add(ProductComponent component) {
             children.add(component);
+            attach(component);
+            notifyStructureObs(component, true);
+        }
+
+        public void add(int position, ProductComponent component) {
+            children.add(position, component);
+            attach(component);
+            notifyStructureObs(component, true);
         }
 
         public void remove(ProductComponent component) {
-            children.remove(component);
+            if (children.remove(component)) {
+                detach(component);
+                notifyStructureObs(component, false);
+            }
+        }
+
+        // Structure observers see additions and removals anywhere below the category they registered on.
+        public synchronized void registerStructureObs(StructureObserver obs) {
+            structureObservers = withAdded(structureObservers, obs);
+        }
+
+        public synchronized void removeStructureObs(StructureObserver obs) {
+            structureObservers = withRemoved(structureObservers, obs);
+        }
+
+        private void notifyStructureObs(ProductComponent component, boolean added) {
+            for (ProductCategory cat = this; cat != null; cat = cat.parent) {
+                List<StructureObserver> observers = cat.structureObservers;
+                if (observers == null) continue;
+                for (StructureObserver obs : observers) {
+                    if (added) {
+                        obs.componentAdded(this, component);
+                    } else {
+                        obs.componentRemoved(this, component);
+                    }
+                }
+            }
+        }
+
+        private void attach(ProductComponent component) {
+            if (component instanceof ProductCategory) {
+                ProductCategory cat = (ProductCategory) component;
+                cat.parent = this;
+                List<Product> products = new ArrayList<>();
+                cat.collectAllProducts(products);
+                for (Product p : products) p.unpark();
+                cat.moveTo(getIndex());
+            } else if (component instanceof Product) {
+                ((Product) component).unpark();
+                ((Product) component).setParent(this);
+                getIndex().register(component);
+            }
+            adjustProductCount(countProducts(component));
+            adjustValue(component.getValue());
+        }
+
+        private void detach(ProductComponent component) {
+            adjustValue(-component.getValue());
+            adjustProductCount(-countProducts(component));
+            if (component instanceof ProductCategory) {
+                ProductCategory cat = (ProductCategory) component;
+                cat.parent = null;
+                cat.unregisterFrom(getIndex());
+                List<Product> products = new ArrayList<>();
+                cat.collectAllProducts(products);
+                Product.park(products);
+                cat.moveTo(new CatalogIndex());
+            } else if (component instanceof Product) {
+                ((Product) component).setParent(null);
+                getIndex().unregister(component);
+                Product.park(List.of((Product) component));
+            }
+        }
+
+        private void moveTo(CatalogIndex target) {
+            index = target;
+            target.register(this);
+            for (ProductComponent child : children) {
+                if (child instanceof ProductCategory) {
+                    ((ProductCategory) child).moveTo(target);
+                } else {
+                    target.register(child);
+                }
+            }
+        }
+
+        private void unregisterFrom(CatalogIndex source) {
+            source.unregister(this);
+            for (ProductComponent child : children) {
+                if (child instanceof ProductCategory) {
+                    ((ProductCategory) child).unregisterFrom(source);
+                } else {
+                    source.unregister(child);
+                }
+            }
+        }
+
+        public boolean contains(ProductComponent component) {
+            for (ProductCategory p = component.getParent(); p != null; p = p.parent) {
+                if (p == this) return true;
+            }
+            return false;
+        }
+
+        public ProductCategory findCategoryByName(String name) {
+            ProductCategory found = getIndex().findCategory(name);
+            return found != null && (found == this || contains(found)) ? found : null;
         }
 
         @Override
@@ -42,61 +792,69 @@ public class CompositePattern {
         }
 
         @Override
-        public int getValue() {
-            int total = 0;
-            for (ProductComponent child : children) {
-                total += child.getValue();
+        public long getValue() {
+            return value.sum();
+        }
+
+        // Number of products anywhere below this category, kept current like the value subtotal.
+        public long getProductCount() { return productCount.get(); }
+
+        private static long countProducts(ProductComponent component) {
+            return component instanceof ProductCategory ? ((ProductCategory) component).getProductCount() : 1;
+        }
+
+        private void adjustProductCount(long delta) {
+            for (ProductCategory cat = this; cat != null; cat = cat.parent) {
+                cat.productCount.addAndGet(delta);
             }
-            return total;
         }
 
-        @Override
-        public void registerObs(ObserverInterface obs) {
-            for (ProductComponent child : getChildren()) {
-                child.registerObs(obs);
+        // Version of this subtree: raised whenever anything below it changes, and never repeated by a
+        // category of the same name created later.
+        public long getVersion() { return versionBase + changes.sum(); }
+
+        // Propagates a change in a descendant up to the root so every subtotal and version stays current.
+        void adjustValue(long delta) {
+            for (ProductCategory cat = this; cat != null; cat = cat.parent) {
+                if (delta != 0) cat.value.add(delta);
+                cat.changes.increment();
             }
         }
 
+        // Observers registered on a category receive updates from every product below it, including
+        // products added later; nothing is copied into the products themselves.
         @Override
-        public void removeObs(ObserverInterface obs) {
-            for (ProductComponent child : getChildren()) {
-                child.removeObs(obs);
-            }
+        public synchronized void registerObs(ObserverInterface obs) {
+            observers = withAdded(observers, obs);
+        }
+
+        @Override
+        public synchronized void removeObs(ObserverInterface obs) {
+            observers = withRemoved(observers, obs);
         }
 
         public Product findProductByName(String name) {
-            for (ProductComponent child : children) {
-                if (child instanceof Product) {
-                    Product p = (Product) child;
-                    if (p.getName().equalsIgnoreCase(name)) {
-                        return p;
-                    }
-                } else if (child instanceof ProductCategory) {
-                    Product found = ((ProductCategory) child).findProductByName(name);
-                    if (found != null) return found;
-                }
-            }
-            return null;
+            Product found = getIndex().findProduct(name);
+            return found != null && contains(found) ? found : null;
         }
 
         public List<Product> getAllLowStockProducts() {
-            List<Product> lowStockList = new ArrayList<>();
-            collectLowStockProducts(lowStockList);
-            return lowStockList;
+            return getLowStockProducts(0, Integer.MAX_VALUE);
         }
 
-        private void collectLowStockProducts(List<Product> result) {
-            for (ProductComponent child : children) {
-                if (child instanceof Product) {
-                    Product p = (Product) child;
-                    String stateName = p.getState().getStateName();
-                    if (stateName.equals("LowStock") || stateName.equals("OutOfStock")) {
-                        result.add(p);
-                    }
-                } else if (child instanceof ProductCategory) {
-                    ((ProductCategory) child).collectLowStockProducts(result);
-                }
+        // Low-stock products in this subtree, furthest below threshold first.
+        public List<Product> getLowStockProducts(int offset, int limit) {
+            if (parent == null) {
+                return getIndex().getLowStock(offset, limit);
+            }
+            List<Product> page = new ArrayList<>();
+            int skipped = 0;
+            for (Product p : getIndex().getLowStock(0, Integer.MAX_VALUE)) {
+                if (page.size() >= limit) break;
+                if (!contains(p) || skipped++ < offset) continue;
+                page.add(p);
             }
+            return page;
         }
 
         public List<Product> getAllProducts() {
@@ -116,110 +874,344 @@ public class CompositePattern {
         }
     }
 
+    // A handle on one row of a ProductStore, which holds every value below; only the references stay
+    // fields here. The store changes when the product leaves or rejoins the tree, the row never does.
     public static class Product implements ProductComponent {
-        private String name;
-        private int price;
-        private int stockLevel;
-        private int threshold;
-        private List<ObserverInterface> observers = new ArrayList<>();
-        private State state;
+        private volatile ProductStore store;
+        private final int row;
+        private ProductCategory parent;
+        private volatile List<ObserverInterface> observers;
 
         public Product(String name, int price, int stockLevel, int threshold) {
-            this.name = name;
-            this.price = price;
-            this.stockLevel = stockLevel;
-            this.threshold = threshold;
+            ProductStore chunk = ProductStore.open();
+            int claimed;
+            while ((claimed = chunk.claim(name)) < 0) chunk = ProductStore.open();
+            row = claimed;
+            chunk.prices[row] = price;
+            chunk.stockWords[row] = word(0, stockLevel);
+            chunk.thresholds[row] = threshold;
+            chunk.states[row] = (byte) StatePattern.band(StatePattern.forLevel(stockLevel, threshold));
+            chunk.keyHashes[row] = CatalogIndex.keyHash(name);
+            store = chunk;
+        }
 
-            if (stockLevel == 0) {
-                this.state = new OutOfStock();
-            } else if (stockLevel < threshold) {
-                this.state = new LowStock();
-            } else {
-                this.state = new InStock();
-            }
+        // Stock level in the low 32 bits, a modification counter in the high 32 bits, updated by CAS
+        // so concurrent sales never oversell and journal records can be ordered per product.
+        private static long word(int version, int stockLevel) {
+            return ((long) version << 32) | (stockLevel & 0xFFFFFFFFL);
         }
 
-        public String getName() { return name; }
-        public int getPrice() { return price; }
-        public int getStockLevel() { return stockLevel; }
-        public int getThreshold() { return threshold; }
-        public State getState() { return state; }
+        private long stockWord() {
+            ProductStore s = store;
+            return (long) ProductStore.LONGS.getVolatile(s.stockWords, s.slot(row));
+        }
 
-        public void setStockLevel(int newStockLevel) {
-            this.stockLevel = newStockLevel;
+        private boolean casStockWord(long expected, long updated) {
+            ProductStore s = store;
+            return ProductStore.LONGS.compareAndSet(s.stockWords, s.slot(row), expected, updated);
+        }
+
+        private int band() {
+            ProductStore s = store;
+            return (byte) ProductStore.BYTES.getVolatile(s.states, s.slot(row));
+        }
+
+        @Override
+        public String getName() {
+            ProductStore s = store;
+            return s.name(s.slot(row));
+        }
+
+        @Override
+        public ProductCategory getParent() { return parent; }
+        void setParent(ProductCategory parent) { this.parent = parent; }
+        public int getPrice() {
+            ProductStore s = store;
+            return s.prices[s.slot(row)];
+        }
+        public int getStockLevel() { return (int) stockWord(); }
+        public int getStockVersion() { return (int) (stockWord() >>> 32); }
+        long getStockWord() { return stockWord(); }
+        public int getThreshold() {
+            ProductStore s = store;
+            return (int) ProductStore.INTS.getVolatile(s.thresholds, s.slot(row));
+        }
+        int keyHash() {
+            ProductStore s = store;
+            return s.keyHashes[s.slot(row)];
+        }
+        public State getState() { return StatePattern.forBand(band()); }
+
+        public boolean isLowStock() {
+            return band() < 2;
+        }
+
+        // Appends the name to out without building a String, e.g. for the JSON writer.
+        void appendName(StringBuilder out) {
+            ProductStore s = store;
+            s.appendName(s.slot(row), out);
+        }
+
+        // CatalogIndex key comparisons, made on the stored name without building a String.
+        boolean keyEquals(String key) {
+            ProductStore s = store;
+            return s.keyEquals(s.slot(row), key);
+        }
 
-            State newState;
-            if (newStockLevel == 0) {
-                newState = new OutOfStock();
-            } else if (newStockLevel <= this.threshold) {
-                newState = new LowStock();
-            } else {
-                newState = new InStock();
+        int compareKey(String key) {
+            ProductStore s = store;
+            return s.compareKey(s.slot(row), key);
+        }
+
+        static int compareKeys(Product a, Product b) {
+            ProductStore sa = a.store;
+            ProductStore sb = b.store;
+            return ProductStore.compareKeys(sa, sa.slot(a.row), sb, sb.slot(b.row));
+        }
+
+        // Unique among current products; breaks ties in the index orderings. It changes only when
+        // the product moves store, which happens while it is in no index of the tree it leaves or joins.
+        long serial() {
+            return store.sequence << ProductStore.ROW_BITS | row;
+        }
+
+        // Moves each product out of its chunk into a parked store and frees its row. A parked store
+        // takes one product per row number, so a subtree needs as many as its most shared row has.
+        static void park(List<Product> products) {
+            List<Product> leaving = new ArrayList<>(products.size());
+            for (Product p : products) {
+                if (!p.store.isParked()) leaving.add(p);
+            }
+            leaving.sort(Comparator.comparingInt(p -> p.row));
+            List<List<Product>> groups = new ArrayList<>();
+            for (int i = 0, repeat = 0; i < leaving.size(); i++) {
+                repeat = i > 0 && leaving.get(i - 1).row == leaving.get(i).row ? repeat + 1 : 0;
+                if (repeat == groups.size()) groups.add(new ArrayList<>());
+                groups.get(repeat).add(leaving.get(i));
+            }
+            for (List<Product> group : groups) {
+                int[] rows = new int[group.size()];
+                int nameBytes = 0;
+                for (int i = 0; i < rows.length; i++) {
+                    Product p = group.get(i);
+                    rows[i] = p.row;
+                    nameBytes += p.store.nameLength(p.row);
+                }
+                ProductStore parked = ProductStore.parked(rows, nameBytes);
+                for (int i = 0; i < rows.length; i++) {
+                    Product p = group.get(i);
+                    ProductStore chunk = p.store;
+                    ProductStore.copy(chunk, p.row, parked, i);
+                    p.store = parked;
+                    chunk.release(p.row);
+                }
             }
+        }
+
+        // Moves a parked product back into a chunk, at its own row number.
+        void unpark() {
+            ProductStore parked = store;
+            if (!parked.isParked()) return;
+            ProductStore chunk = ProductStore.claim(row);
+            ProductStore.copy(parked, parked.slot(row), chunk, row);
+            store = chunk;
+        }
+
+        // CatalogIndex low-stock bookkeeping: the deficit the product was listed under, and whether it is.
+        int lowStockDeficit() {
+            ProductStore s = store;
+            return s.lowStockDeficits[s.slot(row)];
+        }
+        void setLowStockDeficit(int deficit) {
+            ProductStore s = store;
+            s.lowStockDeficits[s.slot(row)] = deficit;
+        }
+        boolean lowStockIndexed() {
+            ProductStore s = store;
+            return (byte) ProductStore.BYTES.getVolatile(s.lowStockIndexed, s.slot(row)) != 0;
+        }
+        void setLowStockIndexed(boolean indexed) {
+            ProductStore s = store;
+            ProductStore.BYTES.setVolatile(s.lowStockIndexed, s.slot(row), (byte) (indexed ? 1 : 0));
+        }
+
+        // ProductIndex bookkeeping: the segment the product is filed in (-1 when it is not) and the
+        // values it was filed under.
+        boolean markIndexPending() {
+            ProductStore s = store;
+            return ProductStore.BYTES.compareAndSet(s.indexPending, s.slot(row), (byte) 0, (byte) 1);
+        }
+        void clearIndexPending() {
+            ProductStore s = store;
+            ProductStore.BYTES.setVolatile(s.indexPending, s.slot(row), (byte) 0);
+        }
+        int indexedSegment() {
+            ProductStore s = store;
+            int[] columns = s.indexedIfPresent();
+            return columns == null ? -1 : columns[s.slot(row) * 4] - 1;
+        }
+        int indexedPrice() { return indexed(1); }
+        int indexedStock() { return indexed(2); }
+        int indexedThreshold() { return indexed(3); }
+        private int indexed(int field) {
+            ProductStore s = store;
+            return s.indexed()[s.slot(row) * 4 + field];
+        }
+        void setIndexed(int segment, int price, int stock, int threshold) {
+            ProductStore s = store;
+            int[] columns = s.indexed();
+            int at = s.slot(row) * 4;
+            columns[at] = segment + 1;
+            columns[at + 1] = price;
+            columns[at + 2] = stock;
+            columns[at + 3] = threshold;
+        }
+
+        private void reindex() {
+            if (parent != null) parent.getIndex().reindex(this);
+        }
+
+        private State stateFor(int stockLevel) {
+            return StatePattern.forLevel(stockLevel, getThreshold());
+        }
 
-            if (this.state.getClass() != newState.getClass()) {
-                this.state = newState;
-                System.out.println(this.name + " New State: " + newState.getClass().getSimpleName());
+        // Removes quantity units atomically; fails instead of letting the stock go negative.
+        public boolean trySell(int quantity) {
+            long current;
+            int level;
+            do {
+                current = stockWord();
+                level = (int) current;
+                if (quantity <= 0 || level < quantity) return false;
+            } while (!casStockWord(current, word((int) (current >>> 32) + 1, level - quantity)));
+            stockChanged(level, level - quantity);
+            return true;
+        }
+
+        // Adds quantity units atomically and returns the new stock level. Removing stock goes through
+        // trySell, which cannot take the level below zero.
+        public int addStock(int quantity) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Restock amount must be positive: " + quantity);
             }
+            long current;
+            int level;
+            do {
+                current = stockWord();
+                level = (int) current;
+                if (level > Integer.MAX_VALUE - quantity) {
+                    throw new IllegalArgumentException("Restocking " + quantity + " would overflow the stock of " + getName());
+                }
+            } while (!casStockWord(current, word((int) (current >>> 32) + 1, level + quantity)));
+            stockChanged(level, level + quantity);
+            return level + quantity;
+        }
+
+        public void setStockLevel(int newStockLevel) {
+            long current;
+            do {
+                current = stockWord();
+            } while (!casStockWord(current, word((int) (current >>> 32) + 1, newStockLevel)));
+            stockChanged((int) current, newStockLevel);
+        }
+
+        // Applies a journaled stock level unless this product has already seen a newer modification.
+        boolean restoreStock(int stockLevel, int version) {
+            long current;
+            do {
+                current = stockWord();
+                if (version - (int) (current >>> 32) <= 0) return false;
+            } while (!casStockWord(current, word(version, stockLevel)));
+            stockChanged((int) current, stockLevel);
+            return true;
+        }
+
+        private void stockChanged(int oldLevel, int newLevel) {
+            if (parent != null) parent.adjustValue((long) getPrice() * (newLevel - oldLevel));
+            refreshState();
+            reindex();
             notifyObs();
         }
 
+        // Re-derives the state from the stock level, repeating until it matches a level read after
+        // our own update so a racing sale and restock cannot leave a stale state behind.
+        private void refreshState() {
+            while (true) {
+                int current = band();
+                int target = StatePattern.band(stateFor(getStockLevel()));
+                if (current == target) return;
+                ProductStore s = store;
+                if (ProductStore.BYTES.compareAndSet(s.states, s.slot(row), (byte) current, (byte) target) && LOG.isDebugEnabled()) {
+                    LOG.debug("{}: {}", getName(), StatePattern.transition(StatePattern.forBand(current), StatePattern.forBand(target)));
+                }
+            }
+        }
+
         public void setState(State newState) {
-            this.state = newState;
+            ProductStore s = store;
+            ProductStore.BYTES.setVolatile(s.states, s.slot(row), (byte) StatePattern.band(newState));
+            reindex();
             notifyObs();
         }
 
         @Override
         public void display() {
-            System.out.println("Product: " + name + " | Price: " + price + " | Stock: " + stockLevel + " | State: " + state.getClass().getSimpleName());
+            System.out.println("Product: " + getName() + " | Price: " + getPrice() + " | Stock: " + getStockLevel() + " | State: " + getState().getClass().getSimpleName());
         }
 
         @Override
-        public int getValue() {
-            return price * stockLevel;
+        public long getValue() {
+            return (long) getPrice() * getStockLevel();
         }
 
         @Override
-        public void registerObs(ObserverInterface obs) {
-            observers.add(obs);
+        public synchronized void registerObs(ObserverInterface obs) {
+            observers = withAdded(observers, obs);
         }
 
         @Override
-        public void removeObs(ObserverInterface obs) {
-            observers.remove(obs);
+        public synchronized void removeObs(ObserverInterface obs) {
+            observers = withRemoved(observers, obs);
         }
 
+        // Notifies this product's own observers, then those inherited from each enclosing category.
         public void notifyObs() {
-            for (ObserverInterface obs : observers) {
+            notifyEach(observers);
+            for (ProductCategory cat = parent; cat != null; cat = cat.parent) {
+                notifyEach(cat.observers);
+            }
+        }
+
+        private void notifyEach(List<ObserverInterface> list) {
+            if (list == null) return;
+            for (ObserverInterface obs : list) {
                 obs.update(this);
             }
         }
         
-        public void sell(int quantity) {
-            state.handleSale(this, quantity);
+        public boolean sell(int quantity) {
+            return getState().handleSale(this, quantity);
         }
         
         public void restock(int quantity) {
-            state.handleRestock(this, quantity);
+            getState().handleRestock(this, quantity);
         }
 
         public void setThreshold(int threshold) {
-            this.threshold = threshold;
-            System.out.println("Updated threshold for " + name + " to " + threshold);
-
-            int current = this.stockLevel;
-            if (current == 0) {
-                setState(new OutOfStock());
-            } else if (current < threshold) {
-                setState(new LowStock());
-            } else {
-                setState(new InStock());
-            }
+            ProductStore s = store;
+            ProductStore.INTS.setVolatile(s.thresholds, s.slot(row), threshold);
+            LOG.info("Updated threshold for {} to {}", getName(), threshold);
+            if (parent != null) parent.adjustValue(0);
+            setState(stateFor(getStockLevel()));
         }
 
         public void setPrice(int price) {
-            this.price = price;
-            System.out.println("Updated price for " + name + " to $" + price);
+            long oldValue = getValue();
+            ProductStore s = store;
+            s.prices[s.slot(row)] = price;
+            if (parent != null) parent.adjustValue(getValue() - oldValue);
+            reindex();
+            LOG.info("Updated price for {} to ${}", getName(), price);
         }
     }
 }
@@ -1,92 +1,518 @@
 package inventory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import inventory.CompositePattern.*;
 import inventory.FactoryPattern.*;
+import inventory.CommandPattern.CommandInterface;
 
 public class Database {
+    private static final Log LOG = Log.get(Database.class);
     private static final String DB_FILE = "inventory_db.txt";
+    private static final String BINARY_FILE = "inventory_db.bin";
+    private static final String JOURNAL_FILE = "inventory_db.wal";
+    private static final boolean BINARY_FORMAT = "binary".equalsIgnoreCase(System.getProperty("inventory.db.format", "csv"));
+    // journal: every commit is appended to the journal before the response; async: commits only mark the tree dirty
+    private static final boolean ASYNC = "async".equalsIgnoreCase(System.getProperty("inventory.db.mode", "journal"));
+    private static final int CHECKPOINT_INTERVAL = Integer.getInteger("inventory.db.checkpointInterval", 1000);
+    private static final long FLUSH_INTERVAL_MILLIS = Long.getLong("inventory.db.flushIntervalMillis", 1000);
 
+    private static final Map<String, IProductFactory> FACTORIES = new HashMap<>();
+    private static final IProductFactory DEFAULT_FACTORY = new ElectronicProductFactory();
+
+    static {
+        FACTORIES.put("ElectronicProduct", new ElectronicProductFactory());
+        FACTORIES.put("ApparelProduct", new ApparelProductFactory());
+    }
+
+    private static final Object CHECKPOINT_LOCK = new Object();
+
+    // Guarded by Database.class
+    private static PrintWriter journalWriter;
+    private static FileOutputStream journalStream;
+    private static int journalRecords;
+    private static int journalSegment;
+    private static long changes;
+    private static long snapshotChanges;
+    private static long checkpointFailures;
+    private static boolean flushRequested;
+    private static Thread writer;
+
+    // Writes a full snapshot synchronously; the caller must keep the tree from changing structure meanwhile.
     public static void save(ProductCategory root) {
-        try (PrintWriter writer = new PrintWriter(new File(DB_FILE))) {
-            writeRecursive(writer, root, "null");
-            System.out.println("Database saved to " + DB_FILE);
-        } catch (IOException e) {
-            System.err.println("Error saving database: " + e.getMessage());
+        checkpoint(root, null);
+    }
+
+    /*
+     * Starts the background writer. From then on commits never write a snapshot themselves: the writer
+     * wakes every flush interval and, if the tree changed (async mode) or the journal is long enough
+     * (journal mode), writes one snapshot covering every change so far under the given tree read lock.
+     */
+    public static synchronized void startWriter(ProductCategory root, Lock treeLock) {
+        if (writer != null) return;
+        writer = new Thread(() -> runWriter(root, treeLock), "inventory-db-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> sync(root), "inventory-db-shutdown"));
+    }
+
+    private static void runWriter(ProductCategory root, Lock treeLock) {
+        while (true) {
+            synchronized (Database.class) {
+                try {
+                    if (!flushRequested) Database.class.wait(FLUSH_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean due = flushRequested || (ASYNC ? changes > snapshotChanges : journalRecords >= CHECKPOINT_INTERVAL);
+                flushRequested = false;
+                if (!due) continue;
+            }
+            checkpoint(root, treeLock);
+        }
+    }
+
+    // Appends the delta records of a command to the journal instead of rewriting the whole snapshot.
+    public static void commit(ProductCategory root, CommandInterface cmd, boolean undone) {
+        List<String> records = new ArrayList<>();
+        cmd.journal(records, undone);
+        commit(root, records);
+    }
+
+    public static void commit(ProductCategory root, List<String> records) {
+        if (records.isEmpty()) return;
+        boolean checkpointNow;
+        synchronized (Database.class) {
+            changes++;
+            boolean journalFailed = false;
+            if (!ASYNC) {
+                try {
+                    if (journalWriter == null) {
+                        journalStream = new FileOutputStream(JOURNAL_FILE, true);
+                        journalWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(journalStream)));
+                    }
+                    for (String record : records) {
+                        journalWriter.println(record);
+                    }
+                    journalWriter.flush();
+                    journalRecords += records.size();
+                } catch (IOException e) {
+                    LOG.error("Error writing journal, falling back to snapshot: {}", e.getMessage());
+                    journalFailed = true;
+                }
+            }
+            if (writer != null) {
+                if (journalFailed) {
+                    flushRequested = true;
+                    Database.class.notifyAll();
+                }
+                return;
+            }
+            checkpointNow = journalFailed || ASYNC || journalRecords >= CHECKPOINT_INTERVAL;
+        }
+        // Without a background writer (command-line use) the committing thread checkpoints inline.
+        if (checkpointNow) checkpoint(root, null);
+    }
+
+    /*
+     * Durability barrier: returns true once every commit made before the call is on disk, or false if
+     * that failed. In journal mode that is an fsync of the journal; in async mode it waits for a
+     * snapshot covering those commits and gives up when a checkpoint fails after the call.
+     * Must not be called while holding the tree lock, since the writer needs it to take the snapshot.
+     */
+    public static boolean sync(ProductCategory root) {
+        synchronized (Database.class) {
+            if (!ASYNC) {
+                if (journalWriter == null) return true;
+                try {
+                    journalWriter.flush();
+                    journalStream.getFD().sync();
+                    return true;
+                } catch (IOException e) {
+                    LOG.error("Error syncing journal: {}", e.getMessage());
+                    return false;
+                }
+            }
+            if (writer != null && writer.isAlive()) {
+                long target = changes;
+                long failures = checkpointFailures;
+                flushRequested = true;
+                Database.class.notifyAll();
+                while (snapshotChanges < target) {
+                    if (checkpointFailures != failures) return false;
+                    try {
+                        Database.class.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (snapshotChanges >= changes) return true;
+        }
+        return checkpoint(root, null);
+    }
+
+    /*
+     * Seals the current journal segment, writes the snapshot to a temp file, fsyncs it and renames it
+     * over the previous one, then drops the sealed segments. Commits keep appending to a fresh segment
+     * meanwhile; a crash at any point leaves either the old snapshot plus all segments or the new one.
+     * A snapshot left in the other format is deleted, since it no longer has the segments it needs.
+     */
+    private static boolean checkpoint(ProductCategory root, Lock treeLock) {
+        synchronized (CHECKPOINT_LOCK) {
+            long covered;
+            int sealed;
+            synchronized (Database.class) {
+                covered = changes;
+                sealed = sealJournal();
+            }
+
+            File target = new File(BINARY_FORMAT ? BINARY_FILE : DB_FILE);
+            File temp = new File(target.getPath() + ".tmp");
+            // The lock is held only to copy the tree into columns; encoding and disk writes happen after.
+            ProductColumns columns;
+            if (treeLock != null) treeLock.lock();
+            try {
+                columns = ProductColumns.capture(root);
+            } finally {
+                if (treeLock != null) treeLock.unlock();
+            }
+            try {
+                if (BINARY_FORMAT) {
+                    BinarySnapshot.write(columns, temp);
+                } else {
+                    writeCsv(columns, temp);
+                }
+            } catch (IOException e) {
+                return checkpointFailed(e);
+            }
+
+            try {
+                try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                return checkpointFailed(e);
+            }
+            LOG.info("Database saved to {} ({} products, {} low on stock)", target, columns.getProductCount(), columns.lowStockCount());
+
+            synchronized (Database.class) {
+                snapshotChanges = Math.max(snapshotChanges, covered);
+                Database.class.notifyAll();
+            }
+            File other = new File(BINARY_FORMAT ? DB_FILE : BINARY_FILE);
+            if (other.exists() && !other.delete()) {
+                LOG.error("Error deleting stale snapshot {}", other);
+            }
+            for (File segment : journalSegments()) {
+                if (segmentNumber(segment) <= sealed && !segment.delete()) {
+                    LOG.error("Error deleting journal segment {}", segment);
+                }
+            }
+            return true;
+        }
+    }
+
+    // Wakes any sync() waiting for this checkpoint so it can report the failure instead of hanging.
+    private static boolean checkpointFailed(IOException e) {
+        LOG.error("Error saving database: {}", e.getMessage());
+        synchronized (Database.class) {
+            checkpointFailures++;
+            Database.class.notifyAll();
+        }
+        return false;
+    }
+
+    // Renames the live journal to the next numbered segment so the snapshot about to be written covers it.
+    private static int sealJournal() {
+        if (journalWriter != null) {
+            // A sync() arriving after this finds no live journal and returns at once, so every record
+            // written so far must already be on disk.
+            journalWriter.flush();
+            try {
+                journalStream.getFD().sync();
+            } catch (IOException e) {
+                LOG.error("Error syncing journal: {}", e.getMessage());
+            }
+            journalWriter.close();
+            journalWriter = null;
+            journalStream = null;
+        }
+        journalRecords = 0;
+        File journal = new File(JOURNAL_FILE);
+        if (journal.exists()) {
+            File segment = new File(JOURNAL_FILE + "." + (journalSegment + 1));
+            if (journal.renameTo(segment)) {
+                journalSegment++;
+            } else {
+                LOG.error("Error sealing journal {}", JOURNAL_FILE);
+            }
+        }
+        return journalSegment;
+    }
+
+    private static List<File> journalSegments() {
+        File[] files = new File(".").listFiles((dir, name) -> name.startsWith(JOURNAL_FILE + ".") && segmentNumber(new File(name)) > 0);
+        List<File> segments = new ArrayList<>(files == null ? List.of() : Arrays.asList(files));
+        segments.sort(Comparator.comparingInt(Database::segmentNumber));
+        return segments;
+    }
+
+    private static int segmentNumber(File segment) {
+        try {
+            return Integer.parseInt(segment.getName().substring(JOURNAL_FILE.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static void writeCsv(ProductCategory root, File file) throws IOException {
+        writeCsv(ProductColumns.capture(root), file);
+    }
+
+    // Same records, in the same tree order, as categoryRecord/productRecord would give for the live tree.
+    static void writeCsv(ProductColumns columns, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (int k = 0; k < columns.orderCount; k++) {
+                int row = columns.order[k];
+                if (row >= 0) {
+                    int parent = columns.categoryParents[row];
+                    writer.println("C," + columns.categoryNames[row] + "," + (parent < 0 ? "null" : columns.categoryNames[parent]));
+                } else {
+                    int i = ~row;
+                    writer.println("P," + columns.productNames[i] + "," + columns.prices[i] + "," + columns.stocks[i] + "," + columns.thresholds[i]
+                            + "," + columns.categoryNames[columns.productParents[i]] + "," + columns.productTypes[i] + "," + columns.stockVersions[i]);
+                }
+            }
+        }
+    }
+
+    // Records are comma-separated lines without quoting, so a name containing a separator would be
+    // split differently when the journal or snapshot is read back.
+    public static void checkName(String name) {
+        if (name.indexOf(',') >= 0 || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Names cannot contain commas or line breaks.");
         }
     }
 
-    private static void writeRecursive(PrintWriter writer, ProductComponent component, String parentName) {
+    public static String categoryRecord(ProductCategory cat, String parentName) {
+        return "C," + cat.getName() + "," + parentName;
+    }
+
+    public static String productRecord(Product p, String parentName) {
+        String productType = p.getClass().getSimpleName();
+        return "P," + p.getName() + "," + p.getPrice() + "," + p.getStockLevel() + "," + p.getThreshold() + "," + parentName + "," + productType + "," + p.getStockVersion();
+    }
+
+    public static String stockRecord(Product p) {
+        return "S," + p.getName() + "," + p.getPrice() + "," + p.getStockLevel() + "," + p.getThreshold() + "," + p.getStockVersion();
+    }
+
+    public static String removeRecord(ProductComponent component) {
+        if (component instanceof ProductCategory) {
+            return "X," + ((ProductCategory) component).getName() + ",C";
+        }
+        return "X," + ((Product) component).getName() + ",P";
+    }
+
+    public static void subtreeRecords(List<String> records, ProductComponent component, String parentName) {
+        writeRecursive(records::add, component, parentName);
+    }
+
+    private static void writeRecursive(Consumer<String> out, ProductComponent component, String parentName) {
         if (component instanceof ProductCategory) {
             ProductCategory cat = (ProductCategory) component;
-            writer.println("C," + cat.getName() + "," + parentName);
+            out.accept(categoryRecord(cat, parentName));
             for (ProductComponent child : cat.getChildren()) {
-                writeRecursive(writer, child, cat.getName());
+                writeRecursive(out, child, cat.getName());
             }
         } else if (component instanceof Product) {
-            Product p = (Product) component;
-            String productType = p.getClass().getSimpleName();
-            writer.println("P," + p.getName() + "," + p.getPrice() + "," + p.getStockLevel() + "," + p.getThreshold() + "," + parentName + "," + productType);
+            out.accept(productRecord((Product) component, parentName));
         }
     }
 
-    public static ProductCategory load() {
+    // Returns null when there is no database yet. One that exists but cannot be read is an error rather
+    // than an empty inventory, so the caller never goes on to write a fresh snapshot over it.
+    public static ProductCategory load() throws IOException {
+        File binary = new File(BINARY_FILE);
         File file = new File(DB_FILE);
-        if (!file.exists()) {
+        boolean useBinary = binary.exists() && (BINARY_FORMAT || !file.exists());
+        if (!useBinary && !file.exists()) {
             return null;
         }
 
-        Map<String, ProductCategory> categories = new HashMap<>();
-        ProductCategory root = null;
+        LoadContext ctx = new LoadContext();
+        try {
+            // Sealed segments left by an interrupted checkpoint come before the live journal.
+            List<File> journals = journalSegments();
+            if (!journals.isEmpty()) {
+                journalSegment = segmentNumber(journals.get(journals.size() - 1));
+            }
+            File journal = new File(JOURNAL_FILE);
+            if (journal.exists()) journals.add(journal);
 
-        Map<String, IProductFactory> factories = new HashMap<>();
-        factories.put("ElectronicProduct", new ElectronicProductFactory());
-        factories.put("ApparelProduct", new ApparelProductFactory());
+            if (useBinary) {
+                ctx.index(BinarySnapshot.read(binary));
+            } else {
+                readRecords(file, ctx);
+            }
+            for (File segment : journals) {
+                int replayed = readRecords(segment, ctx);
+                LOG.info("Replayed {} journal records from {}", replayed, segment);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Error loading database from " + (useBinary ? binary : file) + ": " + e, e);
+        }
+        if (ctx.root == null) {
+            throw new IOException("No root category in " + (useBinary ? binary : file));
+        }
+        return ctx.root;
+    }
 
-        IProductFactory defaultFactory = new ElectronicProductFactory();
+    static IProductFactory factoryFor(String productType) {
+        return FACTORIES.getOrDefault(productType, DEFAULT_FACTORY);
+    }
 
+    static ProductCategory readCsv(File file) throws IOException {
+        LoadContext ctx = new LoadContext();
+        readRecords(file, ctx);
+        return ctx.root;
+    }
+
+    private static int readRecords(File file, LoadContext ctx) throws IOException {
+        int count = 0;
+        int lineNumber = 0;
         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String type = parts[0];
-                String name = parts[1];
-
-                if (parts.length < 5) continue;
-
-                if (type.equals("C")) {
-                    String parentName = parts[parts.length - 1];
-                    ProductCategory cat = new ProductCategory(name);
-                    categories.put(name, cat);
-
-                    if (parentName.equals("null")) {
-                        root = cat;
-                    } else {
-                        ProductCategory parent = categories.get(parentName);
-                        if (parent != null) {
-                            parent.add(cat);
-                        }
-                    }
-                } else if (type.equals("P")) {
-                    int price = Integer.parseInt(parts[2]);
-                    int stock = Integer.parseInt(parts[3]);
-                    int threshold = Integer.parseInt(parts[4]);
-
-                    String parentName = parts[5];
-                    String productType = (parts.length > 6) ? parts[6] : "ElectronicProduct";
-                    IProductFactory selectedFactory = factories.getOrDefault(productType, defaultFactory);
-                    Product p = selectedFactory.createProduct(name, price, stock, threshold);
-                    ProductCategory parent = categories.get(parentName);
-                    if (parent != null) {
-                        parent.add(p);
-                    }
+                lineNumber++;
+                try {
+                    if (ctx.apply(line.split(","))) count++;
+                } catch (RuntimeException e) {
+                    throw new IOException("Unreadable record at " + file + ":" + lineNumber + ": " + e, e);
                 }
             }
-            return root;
-        } catch (IOException | NumberFormatException e) {
-            System.err.println("Error loading database: " + e.getMessage());
-            return null;
+        }
+        return count;
+    }
+
+    // Replays snapshot and journal records; every record is idempotent so a journal
+    // that overlaps the snapshot it was written against can be replayed safely.
+    private static class LoadContext {
+        private final Map<String, ProductCategory> categories = new HashMap<>();
+        private final Map<String, Product> products = new HashMap<>();
+        private final Map<ProductComponent, ProductCategory> parents = new HashMap<>();
+        private ProductCategory root;
+
+        void index(ProductCategory snapshotRoot) {
+            root = snapshotRoot;
+            if (root != null) indexChildren(root);
+        }
+
+        private void indexChildren(ProductCategory cat) {
+            categories.put(cat.getName(), cat);
+            for (ProductComponent child : cat.getChildren()) {
+                parents.put(child, cat);
+                if (child instanceof ProductCategory) {
+                    indexChildren((ProductCategory) child);
+                } else if (child instanceof Product) {
+                    products.put(((Product) child).getName(), (Product) child);
+                }
+            }
+        }
+
+        boolean apply(String[] parts) {
+            if (parts.length < 2) return false;
+            String type = parts[0];
+            String name = parts[1];
+
+            if (type.equals("C") && parts.length >= 3) {
+                if (categories.containsKey(name)) return true;
+                String parentName = parts[parts.length - 1];
+                ProductCategory cat = new ProductCategory(name);
+                categories.put(name, cat);
+
+                if (parentName.equals("null")) {
+                    root = cat;
+                } else {
+                    attach(cat, parentName);
+                }
+                return true;
+            } else if (type.equals("P") && parts.length >= 6) {
+                int price = Integer.parseInt(parts[2]);
+                int stock = Integer.parseInt(parts[3]);
+                int threshold = Integer.parseInt(parts[4]);
+                int version = (parts.length > 7) ? Integer.parseInt(parts[7]) : 0;
+                Product existing = products.get(name);
+                if (existing != null) {
+                    update(existing, price, stock, threshold, version);
+                    return true;
+                }
+
+                String parentName = parts[5];
+                String productType = (parts.length > 6) ? parts[6] : "ElectronicProduct";
+                IProductFactory selectedFactory = factoryFor(productType);
+                Product p = selectedFactory.createProduct(name, price, stock, threshold);
+                if (version != 0) p.restoreStock(stock, version);
+                products.put(name, p);
+                attach(p, parentName);
+                return true;
+            } else if (type.equals("S") && parts.length >= 5) {
+                Product existing = products.get(name);
+                if (existing != null) {
+                    int version = (parts.length > 5) ? Integer.parseInt(parts[5]) : existing.getStockVersion() + 1;
+                    update(existing, Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), version);
+                }
+                return true;
+            } else if (type.equals("X") && parts.length >= 3) {
+                ProductComponent target = parts[2].equals("C") ? categories.get(name) : products.get(name);
+                if (target != null) {
+                    ProductCategory parent = parents.remove(target);
+                    if (parent != null) parent.remove(target);
+                    forget(target);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void attach(ProductComponent component, String parentName) {
+            ProductCategory parent = categories.get(parentName);
+            if (parent != null) {
+                parent.add(component);
+                parents.put(component, parent);
+            }
+        }
+
+        private void forget(ProductComponent component) {
+            if (component instanceof ProductCategory) {
+                ProductCategory cat = (ProductCategory) component;
+                categories.remove(cat.getName());
+                for (ProductComponent child : cat.getChildren()) {
+                    parents.remove(child);
+                    forget(child);
+                }
+            } else {
+                products.remove(((Product) component).getName());
+            }
+        }
+
+        // Records can reach the journal out of order under concurrent sales; the per-product
+        // stock version decides which one wins.
+        private void update(Product p, int price, int stock, int threshold, int version) {
+            if (version - p.getStockVersion() <= 0) return;
+            if (p.getPrice() != price) p.setPrice(price);
+            if (p.getThreshold() != threshold) p.setThreshold(threshold);
+            p.restoreStock(stock, version);
         }
     }
 }
@@ -0,0 +1,287 @@
+package inventory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import inventory.CompositePattern.*;
+
+/*
+ * Writes the /api/inventory JSON for a category tree straight to an output stream as UTF-8, through
+ * one pooled buffer, so memory use does not depend on the size of the tree.
+ *
+ * If a lock is given, it is held only while each category's child list is copied, never while bytes
+ * go out, so a slow client cannot hold up structural changes. Stock figures are read from the live
+ * products. Without a lock the caller must keep the structure from changing for the whole write.
+ *
+ * writeSlice serves the scoped form of the API: a depth limit below which categories become stubs
+ * carrying their counts and value, a page of the top category's children, and a field projection.
+ */
+public class InventoryJsonWriter {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final ConcurrentLinkedQueue<byte[]> BUFFERS = new ConcurrentLinkedQueue<>();
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final Lock childrenLock;
+    private final byte[] buf;
+    private final byte[] digits = new byte[20];
+    private final StringBuilder name = new StringBuilder();  // the product being written, decoded once
+    private int pos;
+    private long written;
+    private boolean details;
+    private int maxDepth = Integer.MAX_VALUE;
+    private Set<String> fields;
+
+    // Position in a category's children, plus the name of the last child returned so a page boundary
+    // survives insertions and removals before it.
+    public static class Cursor {
+        final int position;
+        final String lastName;
+
+        Cursor(int position, String lastName) {
+            this.position = position;
+            this.lastName = lastName;
+        }
+
+        public static Cursor parse(String token) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+                int colon = decoded.indexOf(':');
+                return new Cursor(Integer.parseInt(decoded.substring(0, colon)), decoded.substring(colon + 1));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+        }
+
+        String encode() {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString((position + ":" + lastName).getBytes(StandardCharsets.UTF_8));
+        }
+
+        int resolve(ProductComponent[] children) {
+            if (position > 0 && position <= children.length && children[position - 1].getName().equals(lastName)) {
+                return position;
+            }
+            for (int i = 0; i < children.length; i++) {
+                if (children[i].getName().equals(lastName)) return i + 1;
+            }
+            return Math.min(Math.max(position, 0), children.length);
+        }
+    }
+
+    public InventoryJsonWriter(OutputStream out, Lock childrenLock) {
+        this.out = out;
+        this.childrenLock = childrenLock;
+        byte[] pooled = BUFFERS.poll();
+        this.buf = pooled != null ? pooled : new byte[BUFFER_SIZE];
+    }
+
+    // Writes the tree, flushes and returns the buffer to the pool; the stream itself is left open.
+    public long write(ProductCategory root) throws IOException {
+        try {
+            writeCategory(root, 0, null, Integer.MAX_VALUE);
+            drain();
+            out.flush();
+            return written;
+        } finally {
+            BUFFERS.offer(buf);
+        }
+    }
+
+    /*
+     * Writes one category with its value and counts, categories more than depth levels below it as
+     * stubs, at most limit of its own children starting at cursor (null for the first page), and only
+     * the named fields (null for all); "type" and "children" are always present.
+     */
+    public long writeSlice(ProductCategory category, int depth, Cursor cursor, int limit, Set<String> fields) throws IOException {
+        this.details = true;
+        this.maxDepth = depth;
+        this.fields = fields;
+        try {
+            writeCategory(category, 0, cursor, limit);
+            drain();
+            out.flush();
+            return written;
+        } finally {
+            BUFFERS.offer(buf);
+        }
+    }
+
+    private void writeCategory(ProductCategory category, int level, Cursor cursor, int limit) throws IOException {
+        put((byte) '{');
+        if (include("id")) {
+            ascii("\"id\": \"");
+            number(category.getName().hashCode());
+            ascii("\",");
+        }
+        ascii("\"type\": \"category\"");
+        if (include("name")) {
+            ascii(",\"name\": ");
+            string(category.getName());
+        }
+        if (details) {
+            if (include("value")) {
+                ascii(",\"value\": ");
+                number(category.getValue());
+            }
+            if (include("productCount")) {
+                ascii(",\"productCount\": ");
+                number(category.getProductCount());
+            }
+        }
+
+        ProductComponent[] children;
+        if (childrenLock != null) childrenLock.lock();
+        try {
+            children = category.getChildren().toArray(new ProductComponent[0]);
+        } finally {
+            if (childrenLock != null) childrenLock.unlock();
+        }
+        if (details && include("childCount")) {
+            ascii(",\"childCount\": ");
+            number(children.length);
+        }
+        if (level >= maxDepth) {
+            ascii(",\"stub\": true}");
+            return;
+        }
+
+        int from = cursor == null ? 0 : cursor.resolve(children);
+        int to = (int) Math.min(children.length, (long) from + limit);
+        ascii(",\"children\": [");
+        for (int i = from; i < to; i++) {
+            if (i > from) put((byte) ',');
+            ProductComponent child = children[i];
+            if (child instanceof ProductCategory) {
+                writeCategory((ProductCategory) child, level + 1, null, Integer.MAX_VALUE);
+            } else if (child instanceof Product) {
+                writeProduct((Product) child);
+            }
+        }
+        put((byte) ']');
+        if (to < children.length) {
+            ascii(",\"nextCursor\": ");
+            string(new Cursor(to, children[to - 1].getName()).encode());
+        }
+        put((byte) '}');
+    }
+
+    private void writeProduct(Product p) throws IOException {
+        put((byte) '{');
+        name.setLength(0);
+        p.appendName(name);
+        if (include("id")) {
+            ascii("\"id\": \"");
+            number(hash(name));
+            ascii("\",");
+        }
+        ascii("\"type\": \"product\"");
+        if (include("name")) {
+            ascii(",\"name\": ");
+            string(name);
+        }
+        if (include("price")) {
+            ascii(",\"price\": ");
+            number(p.getPrice());
+        }
+        if (include("quantity")) {
+            ascii(",\"quantity\": ");
+            number(p.getStockLevel());
+        }
+        if (include("threshold")) {
+            ascii(",\"threshold\": ");
+            number(p.getThreshold());
+        }
+        if (details && include("state")) {
+            ascii(",\"state\": ");
+            string(p.getState().getStateName());
+        }
+        put((byte) '}');
+    }
+
+    private boolean include(String field) {
+        return fields == null || fields.contains(field);
+    }
+
+    private void ascii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            put((byte) s.charAt(i));
+        }
+    }
+
+    private void number(long value) throws IOException {
+        if (value < 0) {
+            put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                ascii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            put(digits[--n]);
+        }
+    }
+
+    // The String hashCode of s, which the API uses as a product's id.
+    private static int hash(CharSequence s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    // Quoted, escaped JSON string encoded as UTF-8.
+    private void string(CharSequence s) throws IOException {
+        put((byte) '"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                put((byte) '\\');
+                put((byte) c);
+            } else if (c < 0x20) {
+                ascii("\\u00");
+                put(HEX[c >> 4]);
+                put(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                put((byte) (0xF0 | (cp >> 18)));
+                put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                put((byte) '?');
+            } else {
+                put((byte) (0xE0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void put(byte b) throws IOException {
+        if (pos == buf.length) drain();
+        buf[pos++] = b;
+    }
+
+    private void drain() throws IOException {
+        out.write(buf, 0, pos);
+        written += pos;
+        pos = 0;
+    }
+}
@@ -0,0 +1,18 @@
+package inventory;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Concurrency control for the inventory tree.
+ *
+ * Stock movements take the tree read lock and rely on Product's atomic stock counter, so sales run
+ * in parallel even on the same product. Structural changes (create/remove category, product or type,
+ * undo) take the tree write lock. Readers take the read lock only, so they never wait for a sale.
+ */
+public class InventoryLocks {
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+
+    public Lock readLock() { return treeLock.readLock(); }
+    public Lock writeLock() { return treeLock.writeLock(); }
+}
@@ -0,0 +1,207 @@
+package inventory;
+
+import java.time.Instant;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Level-filtered logging for the inventory package.
+ *
+ * Messages are templates with {} placeholders. A call below the configured level returns after one
+ * comparison, and an enabled call only captures its arguments: the message is formatted and written
+ * by a background thread, so request threads never build strings or block on the console.
+ *
+ *   -Dinventory.log.level=DEBUG|INFO|WARN|ERROR   (default INFO)
+ *   -Dinventory.log.format=text|json              (default text)
+ *   -Dinventory.log.async=false                   write on the calling thread instead
+ *
+ * Output goes to a pluggable Sink; the default writes one line per event to stdout (stderr for WARN and above).
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    public static final class Event {
+        private final long timeMillis = System.currentTimeMillis();
+        private final Level level;
+        private final String logger;
+        private final String thread;
+        private final String template;
+        private final Object[] args;
+
+        Event(Level level, String logger, String template, Object[] args) {
+            this.level = level;
+            this.logger = logger;
+            this.thread = Thread.currentThread().getName();
+            this.template = template;
+            this.args = args;
+        }
+
+        public long getTimeMillis() { return timeMillis; }
+        public Level getLevel() { return level; }
+        public String getLogger() { return logger; }
+        public String getThread() { return thread; }
+
+        public String getMessage() {
+            if (args.length == 0) return template;
+            StringBuilder sb = new StringBuilder(template.length() + 16 * args.length);
+            int arg = 0;
+            int from = 0;
+            int at;
+            while (arg < args.length && (at = template.indexOf("{}", from)) >= 0) {
+                sb.append(template, from, at).append(args[arg++]);
+                from = at + 2;
+            }
+            return sb.append(template, from, template.length()).toString();
+        }
+    }
+
+    public interface Sink {
+        void write(Event event);
+    }
+
+    public static class ConsoleSink implements Sink {
+        private final boolean json;
+
+        public ConsoleSink(boolean json) {
+            this.json = json;
+        }
+
+        @Override
+        public void write(Event event) {
+            String line;
+            if (json) {
+                line = "{\"time\":\"" + Instant.ofEpochMilli(event.getTimeMillis()) + "\",\"level\":\"" + event.getLevel()
+                        + "\",\"logger\":\"" + event.getLogger() + "\",\"thread\":" + quote(event.getThread())
+                        + ",\"message\":" + quote(event.getMessage()) + "}";
+            } else {
+                line = Instant.ofEpochMilli(event.getTimeMillis()) + " " + event.getLevel() + " [" + event.getLogger() + "] " + event.getMessage();
+            }
+            if (event.getLevel().compareTo(Level.WARN) >= 0) {
+                System.err.println(line);
+            } else {
+                System.out.println(line);
+            }
+        }
+
+        private static String quote(String s) {
+            StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append('"').toString();
+        }
+    }
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final BlockingQueue<Event> QUEUE = new ArrayBlockingQueue<>(Integer.getInteger("inventory.log.queue", 8192));
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private static volatile Level level = Level.valueOf(System.getProperty("inventory.log.level", "INFO").toUpperCase());
+    private static volatile Sink sink = new ConsoleSink("json".equalsIgnoreCase(System.getProperty("inventory.log.format", "text")));
+    private static volatile boolean async = Boolean.parseBoolean(System.getProperty("inventory.log.async", "true"));
+    // Written once, under the class lock; read without it on every asynchronous event.
+    private static volatile Thread writer;
+
+    private final String name;
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    public static Log get(Class<?> type) {
+        return new Log(type.getSimpleName());
+    }
+
+    public static void setLevel(Level newLevel) { level = newLevel; }
+    public static void setSink(Sink newSink) { sink = newSink; }
+
+    // Synchronous output keeps log lines in order with other console output, e.g. in the CLI demo.
+    public static void setAsync(boolean enabled) {
+        if (!enabled) flush();
+        async = enabled;
+    }
+
+    // Events discarded because the queue was full; the writer never makes a caller wait.
+    public static long getDropped() { return DROPPED.get(); }
+
+    public boolean isEnabled(Level l) { return l.compareTo(level) >= 0; }
+    public boolean isDebugEnabled() { return isEnabled(Level.DEBUG); }
+
+    public void debug(String template) { if (isEnabled(Level.DEBUG)) log(Level.DEBUG, template, NO_ARGS); }
+    public void debug(String template, Object a) { if (isEnabled(Level.DEBUG)) log(Level.DEBUG, template, new Object[] { a }); }
+    public void debug(String template, Object a, Object b) { if (isEnabled(Level.DEBUG)) log(Level.DEBUG, template, new Object[] { a, b }); }
+    public void debug(String template, Object a, Object b, Object c) { if (isEnabled(Level.DEBUG)) log(Level.DEBUG, template, new Object[] { a, b, c }); }
+
+    public void info(String template) { if (isEnabled(Level.INFO)) log(Level.INFO, template, NO_ARGS); }
+    public void info(String template, Object a) { if (isEnabled(Level.INFO)) log(Level.INFO, template, new Object[] { a }); }
+    public void info(String template, Object a, Object b) { if (isEnabled(Level.INFO)) log(Level.INFO, template, new Object[] { a, b }); }
+    public void info(String template, Object a, Object b, Object c) { if (isEnabled(Level.INFO)) log(Level.INFO, template, new Object[] { a, b, c }); }
+
+    public void warn(String template) { if (isEnabled(Level.WARN)) log(Level.WARN, template, NO_ARGS); }
+    public void warn(String template, Object a) { if (isEnabled(Level.WARN)) log(Level.WARN, template, new Object[] { a }); }
+    public void warn(String template, Object a, Object b) { if (isEnabled(Level.WARN)) log(Level.WARN, template, new Object[] { a, b }); }
+
+    public void error(String template) { if (isEnabled(Level.ERROR)) log(Level.ERROR, template, NO_ARGS); }
+    public void error(String template, Object a) { if (isEnabled(Level.ERROR)) log(Level.ERROR, template, new Object[] { a }); }
+    public void error(String template, Object a, Object b) { if (isEnabled(Level.ERROR)) log(Level.ERROR, template, new Object[] { a, b }); }
+
+    private void log(Level l, String template, Object[] args) {
+        Event event = new Event(l, name, template, args);
+        if (!async) {
+            sink.write(event);
+            return;
+        }
+        if (writer == null) startWriter();
+        if (!QUEUE.offer(event)) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) return;
+        writer = new Thread(Log::drain, "inventory-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "inventory-log-flush"));
+    }
+
+    private static void drain() {
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                write(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            long dropped = DROPPED.get();
+            if (dropped != reportedDrops && QUEUE.isEmpty()) {
+                write(new Event(Level.WARN, "Log", "{} log events dropped, queue full", new Object[] { dropped - reportedDrops }));
+                reportedDrops = dropped;
+            }
+        }
+    }
+
+    private static void write(Event event) {
+        try {
+            sink.write(event);
+        } catch (RuntimeException e) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    // Writes out everything queued so far on the calling thread.
+    public static void flush() {
+        Event event;
+        while ((event = QUEUE.poll()) != null) {
+            write(event);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Fixed-capacity ring of activity log entries.
+ *
+ * Writers claim a sequence number with one atomic increment and publish the entry into its slot, so
+ * appends never lock and never grow the buffer; the oldest entries are simply overwritten. Readers
+ * page by sequence number and stop at a slot whose writer has not published yet, so a cursor never
+ * skips an entry that is still in flight.
+ */
+public class LogBuffer {
+    public static class Entry {
+        private final long seq;
+        private final String text;
+
+        Entry(long seq, String text) {
+            this.seq = seq;
+            this.text = text;
+        }
+
+        public long getSeq() { return seq; }
+        public String getText() { return text; }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong lastSeq = new AtomicLong();
+
+    public LogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public long append(String text) {
+        long seq = lastSeq.incrementAndGet();
+        slots.set((int) (seq & mask), new Entry(seq, text));
+        return seq;
+    }
+
+    public long getLastSeq() {
+        return lastSeq.get();
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    // Entries with a sequence number greater than seq, oldest first; entries already overwritten are skipped.
+    public List<Entry> since(long seq) {
+        long last = lastSeq.get();
+        long from = Math.max(seq + 1, last - slots.length() + 1);
+        List<Entry> entries = new ArrayList<>((int) Math.max(0, last - from + 1));
+        for (long s = from; s <= last; s++) {
+            Entry entry = slots.get((int) (s & mask));
+            if (entry == null || entry.seq < s) break;
+            if (entry.seq == s) entries.add(entry);
+        }
+        return entries;
+    }
+}
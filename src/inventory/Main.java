@@ -5,13 +5,17 @@ import inventory.FactoryPattern.*;
 import inventory.ObserverPattern.*;
 import inventory.CommandPattern.*;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
 
 public class Main {
+    private static final Log LOG = Log.get(Main.class);
+
     public static void main(String[] args) {
         try {
             PrintStream consoleOut = System.out;
+            Log.setAsync(false);
 
             System.out.println("Design Patterns Inventory System Demo");
 
@@ -62,11 +66,11 @@ public class Main {
         }
     }
 
-    public static ProductCategory initializeInventory(InventoryManager manager) {
+    public static ProductCategory initializeInventory(InventoryManager manager) throws IOException {
         ProductCategory rootCategory = inventory.Database.load();
 
         if (rootCategory == null) {
-            System.out.println("No database found. Creating default inventory");
+            LOG.info("No database found. Creating default inventory");
             IProductFactory factory = new ElectronicProductFactory();
             IProductFactory apparelFactory = new ApparelProductFactory();
 
@@ -102,7 +106,7 @@ public class Main {
 
             inventory.Database.save(rootCategory);
         } else {
-            System.out.println("Loaded inventory from database.");
+            LOG.info("Loaded inventory from database.");
         }
         
         if (manager != null) {
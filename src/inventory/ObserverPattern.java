@@ -3,30 +3,62 @@ package inventory;
 import inventory.CompositePattern.*;
 import inventory.CommandPattern.CommandInterface;
 import inventory.SimpleWebServer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import com.google.gson.Gson;
 
 import static inventory.SimpleWebServer.addLog;
 
 public class ObserverPattern {
+    private static final Log LOG = Log.get(ObserverPattern.class);
 
     public interface ObserverInterface {
         void update(Product prd);
     }
 
+    public interface StructureObserver {
+        void componentAdded(ProductCategory parent, ProductComponent child);
+        void componentRemoved(ProductCategory parent, ProductComponent child);
+    }
+
     public interface InventoryDashboard {
         void showInventory();
     }
 
     public static class InventoryManager implements ObserverInterface, InventoryDashboard {
-        private List<CommandInterface> commandHistory = new ArrayList<>();
+        // Client used by callers that do not identify one, such as the CLI demo.
+        public static final String LOCAL_CLIENT = "local";
+        private static final int HISTORY_SIZE = Integer.getInteger("inventory.history.size", 100);
+        private static final long HISTORY_MAX_AGE_MILLIS = Long.getLong("inventory.history.maxAgeSeconds", 0) * 1000;
+        private static final int MAX_CLIENTS = Integer.getInteger("inventory.history.clients", 1000);
+
+        // Each client undoes and redoes only its own commands.
+        private static class Session {
+            final CommandHistory undo = new CommandHistory(HISTORY_SIZE, HISTORY_MAX_AGE_MILLIS);
+            final CommandHistory redo = new CommandHistory(HISTORY_SIZE, HISTORY_MAX_AGE_MILLIS);
+        }
+
+        // Least recently active clients are forgotten first once MAX_CLIENTS is reached.
+        private final Map<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > MAX_CLIENTS;
+            }
+        };
 
         @Override
         public void update(Product product) {
             if (product.getStockLevel() <= product.getThreshold()) {
                 String message = "WARN: " + product.getName() + " low stock (" + product.getStockLevel() + ").";
                 addLog(message);
-                System.out.println(message);
+                LOG.debug(message);
             }
         }
 
@@ -35,21 +67,294 @@ public class ObserverPattern {
             System.out.println("Inventory Manager Dashboard: Checking Inventory");
         }
 
+        private Session session(String client) {
+            synchronized (sessions) {
+                return sessions.computeIfAbsent(client, c -> new Session());
+            }
+        }
+
         public void executeCommand(CommandInterface cmd) {
+            executeCommand(LOCAL_CLIENT, cmd);
+        }
+
+        public void executeCommand(String client, CommandInterface cmd) {
             cmd.execute();
-            commandHistory.add(cmd);
+            Session session = session(client);
+            session.undo.push(cmd);
+            session.redo.clear();
             addLog("COMMAND EXECUTED: " + cmd.getClass().getSimpleName());
         }
 
+        public CommandInterface undoLastCommand() {
+            return undoLastCommand(LOCAL_CLIENT);
+        }
 
-        public void undoLastCommand() {
-            if (!commandHistory.isEmpty()) {
-                inventory.CommandPattern.CommandInterface lastCommand = commandHistory.remove(commandHistory.size() - 1);
-                lastCommand.undo();
+        public CommandInterface undoLastCommand(String client) {
+            Session session = session(client);
+            CommandInterface lastCommand = session.undo.pop();
+            if (lastCommand != null) {
+                try {
+                    lastCommand.undo();
+                } catch (IllegalStateException e) {
+                    // Nothing was undone, so the command stays where it was.
+                    session.undo.push(lastCommand);
+                    throw e;
+                }
+                session.redo.push(lastCommand);
                 addLog("UNDO: " + lastCommand.getClass().getSimpleName());
+                return lastCommand;
             } else {
                 addLog("Error: There is no command for undo.");
+                return null;
+            }
+        }
+
+        public CommandInterface redoLastCommand(String client) {
+            Session session = session(client);
+            CommandInterface lastUndone = session.redo.pop();
+            if (lastUndone != null) {
+                lastUndone.execute();
+                session.undo.push(lastUndone);
+                addLog("REDO: " + lastUndone.getClass().getSimpleName());
+                return lastUndone;
+            } else {
+                addLog("Error: There is no command for redo.");
+                return null;
+            }
+        }
+
+        // Undo and redo histories of all clients, summed.
+        public Map<String, Object> historyMetrics() {
+            List<Session> all;
+            synchronized (sessions) {
+                all = new ArrayList<>(sessions.values());
+            }
+            String[] keys = { "entries", "evicted", "expired", "retainedComponents", "estimatedBytes" };
+            long[] undoTotals = new long[keys.length];
+            long[] redoTotals = new long[keys.length];
+            for (Session session : all) {
+                Map<String, Object> undo = session.undo.metrics();
+                Map<String, Object> redo = session.redo.metrics();
+                for (int i = 0; i < keys.length; i++) {
+                    undoTotals[i] += ((Number) undo.get(keys[i])).longValue();
+                    redoTotals[i] += ((Number) redo.get(keys[i])).longValue();
+                }
+            }
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("clients", all.size());
+            metrics.put("sizePerClient", HISTORY_SIZE);
+            metrics.put("maxAgeSeconds", HISTORY_MAX_AGE_MILLIS / 1000);
+            for (int i = 0; i < keys.length; i++) {
+                metrics.put(keys[i], undoTotals[i]);
+            }
+            metrics.put("redoEntries", redoTotals[0]);
+            metrics.put("estimatedBytes", undoTotals[keys.length - 1] + redoTotals[keys.length - 1]);
+            return metrics;
+        }
+    }
+
+    // What an AsyncObserver does when its queue is full: wait for room, discard the oldest pending
+    // update, or keep at most one pending update per product (discarding the oldest if every slot
+    // holds a different product). Only BLOCK ever makes the selling thread wait.
+    public enum BackPressure { BLOCK, DROP_OLDEST, COALESCE }
+
+    /*
+     * Delivers updates to the wrapped observer on its own virtual thread, so a slow observer never adds
+     * latency to the sale that triggered it. Updates are queued in a bounded queue and the delegate reads
+     * the product when the update is delivered, so it always sees the latest state.
+     */
+    public static class AsyncObserver implements ObserverInterface {
+        private static class Pending {
+            final Product product;
+            final long enqueuedAt;
+
+            Pending(Product product, long enqueuedAt) {
+                this.product = product;
+                this.enqueuedAt = enqueuedAt;
+            }
+        }
+
+        private final String name;
+        private final ObserverInterface delegate;
+        private final int capacity;
+        private final BackPressure policy;
+        private final ArrayDeque<Pending> queue;
+        private final Map<Product, Pending> pendingByProduct = new IdentityHashMap<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong totalLagNanos = new AtomicLong();
+        private final AtomicLong maxLagNanos = new AtomicLong();
+
+        public AsyncObserver(String name, ObserverInterface delegate, int capacity, BackPressure policy) {
+            this.name = name;
+            this.delegate = delegate;
+            this.capacity = capacity;
+            this.policy = policy;
+            this.queue = new ArrayDeque<>(capacity);
+            Thread.ofVirtual().name("observer-" + name).start(this::drain);
+        }
+
+        @Override
+        public void update(Product prd) {
+            lock.lock();
+            try {
+                if (policy == BackPressure.COALESCE && pendingByProduct.containsKey(prd)) {
+                    coalesced.incrementAndGet();
+                    return;
+                }
+                if (queue.size() >= capacity && policy != BackPressure.BLOCK) {
+                    Pending oldest = queue.poll();
+                    if (policy == BackPressure.COALESCE) pendingByProduct.remove(oldest.product);
+                    dropped.incrementAndGet();
+                }
+                while (queue.size() >= capacity) {
+                    notFull.awaitUninterruptibly();
+                }
+                Pending pending = new Pending(prd, System.nanoTime());
+                queue.add(pending);
+                if (policy == BackPressure.COALESCE) pendingByProduct.put(prd, pending);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Pending next;
+                lock.lock();
+                try {
+                    while (queue.isEmpty()) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    next = queue.poll();
+                    if (policy == BackPressure.COALESCE) pendingByProduct.remove(next.product);
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    delegate.update(next.product);
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    LOG.error("Observer {} failed: {}", name, e);
+                }
+                long lag = System.nanoTime() - next.enqueuedAt;
+                delivered.incrementAndGet();
+                totalLagNanos.addAndGet(lag);
+                maxLagNanos.accumulateAndGet(lag, Math::max);
+            }
+        }
+
+        public Map<String, Object> metrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            long count = delivered.get();
+            metrics.put("name", name);
+            metrics.put("policy", policy.name());
+            metrics.put("capacity", capacity);
+            lock.lock();
+            try {
+                metrics.put("queued", queue.size());
+            } finally {
+                lock.unlock();
+            }
+            metrics.put("delivered", count);
+            metrics.put("dropped", dropped.get());
+            metrics.put("coalesced", coalesced.get());
+            metrics.put("failed", failed.get());
+            metrics.put("avgLagMicros", count == 0 ? 0 : totalLagNanos.get() / count / 1000);
+            metrics.put("maxLagMicros", maxLagNanos.get() / 1000);
+            return metrics;
+        }
+    }
+
+    // Turns product updates and structural changes into sequenced JSON events, keeping the most
+    // recent ones in a ring so subscribers can resume from the last sequence they saw.
+    public static class ChangeFeed implements ObserverInterface, StructureObserver {
+        private final Gson gson = new Gson();
+        private final long[] seqs;
+        private final String[] events;
+        private long lastSeq;
+
+        public ChangeFeed(int capacity) {
+            this.seqs = new long[capacity];
+            this.events = new String[capacity];
+        }
+
+        @Override
+        public void update(Product prd) {
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("type", "stock");
+            event.put("name", prd.getName());
+            event.put("price", prd.getPrice());
+            event.put("quantity", prd.getStockLevel());
+            event.put("threshold", prd.getThreshold());
+            event.put("state", prd.getState().getStateName());
+            publish(event);
+        }
+
+        @Override
+        public void componentAdded(ProductCategory parent, ProductComponent child) {
+            publish(structureEvent("added", parent, child));
+        }
+
+        @Override
+        public void componentRemoved(ProductCategory parent, ProductComponent child) {
+            publish(structureEvent("removed", parent, child));
+        }
+
+        private Map<String, Object> structureEvent(String type, ProductCategory parent, ProductComponent child) {
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("type", type);
+            event.put("kind", child instanceof ProductCategory ? "category" : "product");
+            event.put("name", child.getName());
+            event.put("parent", parent.getName());
+            return event;
+        }
+
+        private synchronized void publish(Map<String, Object> event) {
+            long seq = ++lastSeq;
+            event.put("seq", seq);
+            int slot = (int) (seq % events.length);
+            seqs[slot] = seq;
+            events[slot] = gson.toJson(event);
+            notifyAll();
+        }
+
+        public synchronized long getLastSeq() {
+            return lastSeq;
+        }
+
+        public synchronized long getOldestSeq() {
+            return Math.max(1, lastSeq - events.length + 1);
+        }
+
+        // Waits up to timeoutMillis for events after the given sequence and copies them into out.
+        // Returns false if that sequence has already been overwritten, or was never issued by this
+        // feed (a client resuming across a restart), and the caller must resync.
+        public synchronized boolean awaitAfter(long seq, long timeoutMillis, List<Long> outSeqs, List<String> out) throws InterruptedException {
+            if (seq > lastSeq) {
+                return false;
+            }
+            if (lastSeq == seq && timeoutMillis > 0) {
+                wait(timeoutMillis);
+            }
+            if (seq < getOldestSeq() - 1) {
+                return false;
+            }
+            for (long s = seq + 1; s <= lastSeq; s++) {
+                int slot = (int) (s % events.length);
+                outSeqs.add(seqs[slot]);
+                out.add(events[slot]);
             }
+            return true;
         }
     }
 }
@@ -0,0 +1,100 @@
+package inventory;
+
+import java.util.Arrays;
+import inventory.CompositePattern.*;
+
+/*
+ * Struct-of-arrays copy of a category tree: one primitive array per product field, rows in tree
+ * order. Category and type names are shared with the live objects; product names are decoded from
+ * their stores once, since a product keeps no String of its own.
+ *
+ * Capturing only reads fields, so a checkpoint holds the tree lock for that one pass and encodes and
+ * writes the snapshot afterwards. Whole-catalog passes over the copy walk flat arrays instead of
+ * child lists and product objects.
+ */
+public class ProductColumns {
+    int categoryCount;
+    String[] categoryNames = new String[16];
+    int[] categoryParents = new int[16];          // category index, -1 for the root
+
+    int productCount;
+    String[] productNames = new String[64];
+    String[] productTypes = new String[64];       // class simple name, as in the CSV records
+    int[] prices = new int[64];
+    int[] stocks = new int[64];
+    int[] thresholds = new int[64];
+    int[] stockVersions = new int[64];
+    int[] productParents = new int[64];
+    byte[] states = new byte[64];                 // StatePattern band: 0 out, 1 low, 2 in stock
+
+    // Every row in tree order: a category index, or ~index for a product.
+    int[] order = new int[80];
+    int orderCount;
+
+    public static ProductColumns capture(ProductCategory root) {
+        ProductColumns columns = new ProductColumns();
+        columns.addCategory(root, -1);
+        return columns;
+    }
+
+    private void addCategory(ProductCategory cat, int parent) {
+        int index = categoryCount++;
+        if (index == categoryNames.length) {
+            categoryNames = Arrays.copyOf(categoryNames, index * 2);
+            categoryParents = Arrays.copyOf(categoryParents, index * 2);
+        }
+        categoryNames[index] = cat.getName();
+        categoryParents[index] = parent;
+        addOrder(index);
+        for (ProductComponent child : cat.getChildren()) {
+            if (child instanceof ProductCategory) {
+                addCategory((ProductCategory) child, index);
+            } else if (child instanceof Product) {
+                addProduct((Product) child, index);
+            }
+        }
+    }
+
+    private void addProduct(Product p, int parent) {
+        int i = productCount++;
+        if (i == productNames.length) growProducts(i * 2);
+        // One read of the stock word, so the level and its version always belong together.
+        long word = p.getStockWord();
+        productNames[i] = p.getName();
+        productTypes[i] = p.getClass().getSimpleName();
+        prices[i] = p.getPrice();
+        stocks[i] = (int) word;
+        stockVersions[i] = (int) (word >>> 32);
+        thresholds[i] = p.getThreshold();
+        productParents[i] = parent;
+        states[i] = (byte) StatePattern.band(p.getState());
+        addOrder(~i);
+    }
+
+    private void growProducts(int capacity) {
+        productNames = Arrays.copyOf(productNames, capacity);
+        productTypes = Arrays.copyOf(productTypes, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        stocks = Arrays.copyOf(stocks, capacity);
+        thresholds = Arrays.copyOf(thresholds, capacity);
+        stockVersions = Arrays.copyOf(stockVersions, capacity);
+        productParents = Arrays.copyOf(productParents, capacity);
+        states = Arrays.copyOf(states, capacity);
+    }
+
+    private void addOrder(int row) {
+        if (orderCount == order.length) order = Arrays.copyOf(order, orderCount * 2);
+        order[orderCount++] = row;
+    }
+
+    public int getCategoryCount() { return categoryCount; }
+    public int getProductCount() { return productCount; }
+
+    public int lowStockCount() {
+        int count = 0;
+        for (int i = 0; i < productCount; i++) {
+            if (states[i] < 2) count++;
+        }
+        return count;
+    }
+}
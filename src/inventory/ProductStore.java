@@ -0,0 +1,387 @@
+package inventory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Column storage behind CompositePattern.Product: the product's values live in primitive arrays, one
+ * row per product, and a Product is a handle on its store and row that keeps only its references
+ * (parent and observers) as fields. Names are kept in one byte pool per store instead of as a String
+ * per product: a byte per char, or two for names beyond Latin-1.
+ *
+ * Products share fixed-size chunks of ROWS rows. A product leaving the tree moves into a parked
+ * store sized to the products leaving with it and frees its row, which the next product created or
+ * restored reuses; a chunk whose rows are all free is dropped by the allocator and collected. So a
+ * removed product kept for undo holds only its own values, never a chunk. Restoring it claims the
+ * same row number in a chunk again, so a product's row never changes, and a parked store maps rows
+ * to its slots by binary search. Products move only under the tree write lock, which stock changes
+ * never overlap; a reader without the lock sees either copy.
+ */
+final class ProductStore {
+    static final int ROW_BITS = 10;
+    static final int ROWS = 1 << ROW_BITS;
+
+    // Volatile and atomic access to single column entries.
+    static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private static final AtomicLong SEQUENCES = new AtomicLong();
+    // Case folding of Latin-1 chars, as String.toLowerCase(Locale.ROOT) does it.
+    private static final char[] FOLDED = new char[256];
+
+    // Chunks with a free row, in the order they got one; new products go to the first.
+    // Guarded by ProductStore.class, like the free rows and name pools of every store.
+    private static final ArrayDeque<ProductStore> WITH_FREE_ROWS = new ArrayDeque<>();
+    private static volatile ProductStore open;
+
+    static {
+        for (int c = 0; c < FOLDED.length; c++) FOLDED[c] = Character.toLowerCase((char) c);
+        reopen();
+    }
+
+    // Orders stores by creation, so sequence << ROW_BITS | row is a unique serial per product.
+    final long sequence = SEQUENCES.getAndIncrement();
+    // Rows of the products of a parked store, ascending, at their slots; null for a chunk, whose
+    // slots are its rows.
+    private final int[] parkedRows;
+
+    final int[] prices;
+    final long[] stockWords;                          // version << 32 | stock level, see Product
+    final int[] thresholds;
+    final byte[] states;                              // StatePattern band
+    final int[] keyHashes;                            // hash of the case-folded name, for CatalogIndex
+    final int[] lowStockDeficits;
+    final byte[] lowStockIndexed;
+    final byte[] indexPending;
+    // ProductIndex bookkeeping, four ints per slot; only allocated once a product index files a slot.
+    private volatile int[] indexed;
+
+    // The pool and the spans pointing into it are replaced together, so a span read from one pool
+    // always lies within it.
+    private static final class Names {
+        final byte[] bytes;
+        final long[] spans;                           // per slot: wide << 63 | start << 32 | length
+
+        Names(byte[] bytes, long[] spans) {
+            this.bytes = bytes;
+            this.spans = spans;
+        }
+    }
+
+    private volatile Names names;
+    private int nameBytes;                            // end of the used part of the pool
+    private int garbageBytes;                         // names of freed rows still in the pool
+    private final long[] freeRows;                    // chunks only: bit per free row
+    private int freeCount;
+
+    private ProductStore(int[] parkedRows, int nameCapacity) {
+        this.parkedRows = parkedRows;
+        int slots = parkedRows == null ? ROWS : parkedRows.length;
+        prices = new int[slots];
+        stockWords = new long[slots];
+        thresholds = new int[slots];
+        states = new byte[slots];
+        keyHashes = new int[slots];
+        lowStockDeficits = new int[slots];
+        lowStockIndexed = new byte[slots];
+        indexPending = new byte[slots];
+        names = new Names(new byte[nameCapacity], new long[slots]);
+        if (parkedRows == null) {
+            freeRows = new long[ROWS / 64];
+            Arrays.fill(freeRows, -1L);
+            freeCount = ROWS;
+        } else {
+            freeRows = null;
+        }
+    }
+
+    // The chunk new products go to; claim() may still find it full if another thread got there first.
+    static ProductStore open() {
+        return open;
+    }
+
+    // Points open at the first chunk with a free row, starting a new chunk if there is none.
+    private static void reopen() {
+        if (WITH_FREE_ROWS.isEmpty()) WITH_FREE_ROWS.add(new ProductStore(null, ROWS * 8));
+        open = WITH_FREE_ROWS.peekFirst();
+    }
+
+    // Claims a free row of this chunk for a product with the given name, or returns -1 when it is full.
+    int claim(String name) {
+        synchronized (ProductStore.class) {
+            if (freeCount == 0) return -1;
+            int row = 0;
+            while (freeRows[row >>> 6] == 0) row += 64;
+            row += Long.numberOfTrailingZeros(freeRows[row >>> 6]);
+            putName(row, name);
+            take(row);
+            return row;
+        }
+    }
+
+    // Claims the given row in the first chunk where it is free, for a product coming back to the tree.
+    static synchronized ProductStore claim(int row) {
+        for (ProductStore chunk : WITH_FREE_ROWS) {
+            if ((chunk.freeRows[row >>> 6] & 1L << row) != 0) {
+                chunk.take(row);
+                return chunk;
+            }
+        }
+        ProductStore chunk = new ProductStore(null, ROWS * 8);
+        WITH_FREE_ROWS.add(chunk);
+        chunk.take(row);
+        return chunk;
+    }
+
+    private void take(int row) {
+        freeRows[row >>> 6] &= ~(1L << row);
+        if (--freeCount == 0) {
+            WITH_FREE_ROWS.remove(this);
+            if (open == this) reopen();
+        }
+    }
+
+    // Frees a row of this chunk once its product has moved out.
+    void release(int row) {
+        synchronized (ProductStore.class) {
+            garbageBytes += length(names.spans[row]);
+            lowStockDeficits[row] = 0;
+            lowStockIndexed[row] = 0;
+            indexPending[row] = 0;
+            int[] columns = indexed;
+            if (columns != null) Arrays.fill(columns, row * 4, row * 4 + 4, 0);
+            freeRows[row >>> 6] |= 1L << row;
+            if (freeCount++ == 0) WITH_FREE_ROWS.add(this);
+            if (freeCount == ROWS && WITH_FREE_ROWS.size() > 1) {
+                WITH_FREE_ROWS.remove(this);
+                if (open == this) reopen();
+            }
+        }
+    }
+
+    // An empty store for the given rows, ascending and distinct, with room for nameBytes of names.
+    static ProductStore parked(int[] rows, int nameBytes) {
+        return new ProductStore(rows, nameBytes);
+    }
+
+    boolean isParked() {
+        return parkedRows != null;
+    }
+
+    // The index of a product's row in the columns.
+    int slot(int row) {
+        return parkedRows == null ? row : Arrays.binarySearch(parkedRows, row);
+    }
+
+    // Copies every value of one slot to a slot of another store, name included.
+    static void copy(ProductStore from, int fromSlot, ProductStore to, int toSlot) {
+        synchronized (ProductStore.class) {
+            to.prices[toSlot] = from.prices[fromSlot];
+            to.stockWords[toSlot] = from.stockWords[fromSlot];
+            to.thresholds[toSlot] = from.thresholds[fromSlot];
+            to.states[toSlot] = from.states[fromSlot];
+            to.keyHashes[toSlot] = from.keyHashes[fromSlot];
+            to.lowStockDeficits[toSlot] = from.lowStockDeficits[fromSlot];
+            to.lowStockIndexed[toSlot] = from.lowStockIndexed[fromSlot];
+            to.indexPending[toSlot] = from.indexPending[fromSlot];
+            int[] columns = from.indexed;
+            if (columns != null) System.arraycopy(columns, fromSlot * 4, to.indexed(), toSlot * 4, 4);
+            Names source = from.names;
+            long span = source.spans[fromSlot];
+            int start = to.reserveName(length(span));
+            Names target = to.names;
+            System.arraycopy(source.bytes, start(span), target.bytes, start, length(span));
+            LONGS.setRelease(target.spans, toSlot, span(start, length(span), wide(span)));
+        }
+    }
+
+    int nameLength(int slot) {
+        return length(names.spans[slot]);
+    }
+
+    private void putName(int slot, String name) {
+        boolean wide = !latin1(name);
+        int length = wide ? name.length() * 2 : name.length();
+        int start = reserveName(length);
+        Names pool = names;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (wide) {
+                pool.bytes[start + 2 * i] = (byte) (c >>> 8);
+                pool.bytes[start + 2 * i + 1] = (byte) c;
+            } else {
+                pool.bytes[start + i] = (byte) c;
+            }
+        }
+        // Released after the bytes, so a reader that sees the span also sees the name.
+        LONGS.setRelease(pool.spans, slot, span(start, length, wide));
+    }
+
+    // Makes room for length more bytes at the end of the pool and returns where they start. A full
+    // pool is compacted when freed names take up half of it and doubled otherwise.
+    private int reserveName(int length) {
+        Names pool = names;
+        if (nameBytes + length > pool.bytes.length) {
+            boolean compact = garbageBytes * 2 > nameBytes;
+            int live = nameBytes - (compact ? garbageBytes : 0);
+            byte[] bytes = new byte[Math.max(live + length, compact ? pool.bytes.length : pool.bytes.length * 2)];
+            long[] spans = pool.spans.clone();
+            if (compact) {
+                int end = 0;
+                for (int slot = 0; slot < spans.length; slot++) {
+                    if (freeRows != null && (freeRows[slot >>> 6] & 1L << slot) != 0) {
+                        spans[slot] = 0;
+                        continue;
+                    }
+                    long span = spans[slot];
+                    System.arraycopy(pool.bytes, start(span), bytes, end, length(span));
+                    spans[slot] = span(end, length(span), wide(span));
+                    end += length(span);
+                }
+                nameBytes = end;
+                garbageBytes = 0;
+            } else {
+                System.arraycopy(pool.bytes, 0, bytes, 0, nameBytes);
+            }
+            names = new Names(bytes, spans);
+        }
+        int start = nameBytes;
+        nameBytes += length;
+        return start;
+    }
+
+    private static long span(int start, int length, boolean wide) {
+        return (wide ? 1L << 63 : 0) | (long) start << 32 | length;
+    }
+
+    private static int start(long span) {
+        return (int) (span >>> 32) & Integer.MAX_VALUE;
+    }
+
+    private static int length(long span) {
+        return (int) span;
+    }
+
+    private static boolean wide(long span) {
+        return span < 0;
+    }
+
+    private static boolean latin1(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0xFF) return false;
+        }
+        return true;
+    }
+
+    String name(int slot) {
+        Names pool = names;
+        return decode(pool, (long) LONGS.getAcquire(pool.spans, slot));
+    }
+
+    private static String decode(Names pool, long span) {
+        int start = start(span);
+        if (!wide(span)) {
+            return new String(pool.bytes, start, length(span), StandardCharsets.ISO_8859_1);
+        }
+        char[] chars = new char[length(span) / 2];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ((pool.bytes[start + 2 * i] & 0xFF) << 8 | pool.bytes[start + 2 * i + 1] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    // Appends the name to out without building a String.
+    void appendName(int slot, StringBuilder out) {
+        Names pool = names;
+        long span = (long) LONGS.getAcquire(pool.spans, slot);
+        int start = start(span);
+        if (!wide(span)) {
+            for (int i = start; i < start + length(span); i++) out.append((char) (pool.bytes[i] & 0xFF));
+            return;
+        }
+        for (int i = start; i < start + length(span); i += 2) {
+            out.append((char) ((pool.bytes[i] & 0xFF) << 8 | pool.bytes[i + 1] & 0xFF));
+        }
+    }
+
+    /*
+     * Comparisons of case-folded names (CatalogIndex keys) made on the pooled bytes, so lookups and
+     * sorts build no Strings. Folding a Latin-1 name char by char gives its key; a name stored two
+     * bytes per char is decoded and folded whole instead, since folding can change its length.
+     */
+    boolean keyEquals(int slot, String key) {
+        Names pool = names;
+        long span = (long) LONGS.getAcquire(pool.spans, slot);
+        if (wide(span)) return key(pool, span).equals(key);
+        if (length(span) != key.length()) return false;
+        int start = start(span);
+        for (int i = 0; i < key.length(); i++) {
+            if (FOLDED[pool.bytes[start + i] & 0xFF] != key.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // As key(name).compareTo(key).
+    int compareKey(int slot, String key) {
+        Names pool = names;
+        long span = (long) LONGS.getAcquire(pool.spans, slot);
+        if (wide(span)) return key(pool, span).compareTo(key);
+        int start = start(span);
+        int length = length(span);
+        int common = Math.min(length, key.length());
+        for (int i = 0; i < common; i++) {
+            char c = FOLDED[pool.bytes[start + i] & 0xFF];
+            if (c != key.charAt(i)) return c - key.charAt(i);
+        }
+        return length - key.length();
+    }
+
+    // As key(nameA).compareTo(key(nameB)).
+    static int compareKeys(ProductStore a, int slotA, ProductStore b, int slotB) {
+        Names poolA = a.names;
+        Names poolB = b.names;
+        long spanA = (long) LONGS.getAcquire(poolA.spans, slotA);
+        long spanB = (long) LONGS.getAcquire(poolB.spans, slotB);
+        if (wide(spanA) || wide(spanB)) return key(poolA, spanA).compareTo(key(poolB, spanB));
+        int startA = start(spanA);
+        int startB = start(spanB);
+        int lengthA = length(spanA);
+        int lengthB = length(spanB);
+        byte[] bytesA = poolA.bytes;
+        byte[] bytesB = poolB.bytes;
+        int common = Math.min(lengthA, lengthB);
+        for (int i = 0; i < common; i++) {
+            byte x = bytesA[startA + i];
+            byte y = bytesB[startB + i];
+            if (x == y) continue;  // equal bytes fold alike; most names share a long prefix
+            char ca = FOLDED[x & 0xFF];
+            char cb = FOLDED[y & 0xFF];
+            if (ca != cb) return ca - cb;
+        }
+        return lengthA - lengthB;
+    }
+
+    private static String key(Names pool, long span) {
+        return decode(pool, span).toLowerCase(Locale.ROOT);
+    }
+
+    int[] indexed() {
+        int[] columns = indexed;
+        return columns != null ? columns : createIndexed();
+    }
+
+    int[] indexedIfPresent() {
+        return indexed;
+    }
+
+    private synchronized int[] createIndexed() {
+        if (indexed == null) indexed = new int[prices.length * 4];
+        return indexed;
+    }
+}
@@ -7,14 +7,16 @@ import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.File;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
 
 import inventory.CompositePattern.*;
 import inventory.FactoryPattern.*;
@@ -26,121 +28,352 @@ public class SimpleWebServer {
 
     private static ProductCategory rootCategory;
     private static InventoryManager manager;
-    private static List<String> logs = new ArrayList<>();
-    private static final Map<String, IProductFactory> FACTORIES = new HashMap<>();
+    private static ChangeFeed feed;
+    private static final List<AsyncObserver> asyncObservers = new ArrayList<>();
+    private static final LogBuffer logs = new LogBuffer(Integer.getInteger("inventory.logs.capacity", 64));
+    private static final Gson GSON = new Gson();
+    private static final Map<String, IProductFactory> FACTORIES = new ConcurrentHashMap<>();
+    private static final InventoryLocks LOCKS = new InventoryLocks();
+    private static final Log LOG = Log.get(SimpleWebServer.class);
+    private static final StaticAssets ASSETS = new StaticAssets(java.nio.file.Paths.get("src", "web"),
+            Long.getLong("inventory.assets.maxAgeSeconds", 86400), "index.html", "style.css");
 
     public static void main(String[] args) throws IOException {
         setupInventory();
+        if (Boolean.getBoolean("inventory.assets.watch")) {
+            ASSETS.watch();
+        }
         int port = 8000;
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         server.createContext("/api/action", new ActionHandler());
+        server.createContext("/api/actions/batch", new BatchActionHandler());
 
         server.createContext("/api/inventory", new InventoryApiHandler());
+        server.createContext("/api/inventory/stream", new InventoryStreamHandler());
         server.createContext("/api/product-types", new ProductTypesHandler());
         server.createContext("/api/logs", new LogsHandler());
+        server.createContext("/api/low-stock", new LowStockHandler());
+        server.createContext("/api/products", new ProductQueryHandler());
+        server.createContext("/api/search", new SearchHandler());
+        server.createContext("/api/metrics", new MetricsHandler());
 
         server.createContext("/", new DashboardHandler());
         server.createContext("/style.css", new StyleHandler());
 
-        server.setExecutor(null);
-        System.out.println("Server started on http://localhost:" + port);
+        String executorMode = System.getProperty("inventory.server.executor", "fixed");
+        server.setExecutor(createExecutor(executorMode));
+        LOG.info("Server started on http://localhost:{} (executor: {})", port, executorMode);
         server.start();
     }
 
-    private static void setupInventory() {
+    // single: the JDK dispatcher thread; fixed[:N]: N worker threads (default one per core); virtual: a virtual thread per request
+    static Executor createExecutor(String mode) {
+        if (mode.equals("single")) {
+            return null;
+        }
+        if (mode.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        if (mode.startsWith("fixed")) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (mode.startsWith("fixed:")) {
+                threads = Integer.parseInt(mode.substring("fixed:".length()));
+            }
+            return Executors.newFixedThreadPool(threads);
+        }
+        throw new IllegalArgumentException("Unknown executor mode: " + mode);
+    }
+
+    private static void setupInventory() throws IOException {
         manager = new InventoryManager() {
             @Override
             public void update(Product prd) {
                 super.update(prd);
-                logs.add("Update: " + prd.getName() + " is now " + prd.getState().getClass().getSimpleName());
+                addLog("Update: " + prd.getName() + " is now " + prd.getState().getClass().getSimpleName());
             }
         };
         FACTORIES.put("electronics", new ElectronicProductFactory());
         FACTORIES.put("apparel", new ApparelProductFactory());
 
-        rootCategory = Main.initializeInventory(manager);
+        rootCategory = Main.initializeInventory(null);
+
+        feed = new ChangeFeed(Integer.getInteger("inventory.feed.capacity", 4096));
+        // Registered once on the root, so products created later report to them as well.
+        rootCategory.registerObs(dispatch("manager", manager, BackPressure.DROP_OLDEST));
+        rootCategory.registerObs(dispatch("feed", feed, BackPressure.COALESCE));
+        rootCategory.registerStructureObs(feed);
+
+        inventory.Database.startWriter(rootCategory, LOCKS.readLock());
+    }
+
+    private static ObserverInterface dispatch(String name, ObserverInterface observer, BackPressure policy) {
+        if (!Boolean.parseBoolean(System.getProperty("inventory.observers.async", "true"))) {
+            return observer;
+        }
+        AsyncObserver async = new AsyncObserver(name, observer, Integer.getInteger("inventory.observers.queue", 1024), policy);
+        asyncObservers.add(async);
+        return async;
+    }
+
+    private static final String CLIENT_COOKIE = "inventory_client";
+
+    // Undo/redo history is kept per client: an X-Client-Id header, a client form field, the cookie
+    // the dashboard hands out, or failing all of those the remote address.
+    static String clientId(HttpExchange t, Map<String, String> params) {
+        String client = t.getRequestHeaders().getFirst("X-Client-Id");
+        if (client == null && params != null) client = params.get("client");
+        if (client == null) {
+            String cookies = t.getRequestHeaders().getFirst("Cookie");
+            if (cookies != null) {
+                for (String cookie : cookies.split(";")) {
+                    String[] pair = cookie.trim().split("=", 2);
+                    if (pair.length == 2 && pair[0].equals(CLIENT_COOKIE)) client = pair[1];
+                }
+            }
+        }
+        if (client == null || client.isBlank()) {
+            client = t.getRemoteAddress().getAddress().getHostAddress();
+        }
+        return client;
     }
 
     static class DashboardHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            File file = new File("src/web/index.html");
-            if (!file.exists()) {
-                String response = "404 - Dashboard not found (checked src/web/index.html)";
-                t.sendResponseHeaders(404, response.length());
+            String cookies = t.getRequestHeaders().getFirst("Cookie");
+            if (cookies == null || !cookies.contains(CLIENT_COOKIE + "=")) {
+                t.getResponseHeaders().add("Set-Cookie", CLIENT_COOKIE + "=" + java.util.UUID.randomUUID() + "; Path=/; SameSite=Strict");
+            }
+            if (!ASSETS.serve(t, "index.html")) {
+                byte[] response = "404 - Dashboard not found (checked src/web/index.html)".getBytes(StandardCharsets.UTF_8);
+                t.sendResponseHeaders(404, response.length);
                 OutputStream os = t.getResponseBody();
-                os.write(response.getBytes());
+                os.write(response);
                 os.close();
-                return;
             }
-            String htmlTemplate = new String(Files.readAllBytes(file.toPath()));
-            t.sendResponseHeaders(200, htmlTemplate.length());
-            OutputStream os = t.getResponseBody();
-            os.write(htmlTemplate.getBytes());
-            os.close();
         }
     }
 
+    // Serves the tree as JSON. Bodies up to inventory.json.cacheBytes are built once per tree version and
+    // kept for the next poll; larger ones are streamed chunked and never held in memory.
     static class InventoryApiHandler implements HttpHandler {
+        // Distinguishes ETags across restarts, since subtree versions start over with the process.
+        private static final String BOOT_ID = Long.toString(System.currentTimeMillis(), 36);
+        private static final long CACHE_LIMIT = Long.getLong("inventory.json.cacheBytes", 4L << 20);
+
+        private volatile Body cachedBody;
+        private volatile long lastSize;
+
+        private static class Body {
+            final long version;
+            final byte[] bytes;
+
+            Body(long version, byte[] bytes) {
+                this.version = version;
+                this.bytes = bytes;
+            }
+        }
+
         @Override
         public void handle(HttpExchange t) throws IOException {
-            String json = convertCategoryToJson(rootCategory);
-            byte[] response = json.getBytes(StandardCharsets.UTF_8);
+            String query = t.getRequestURI().getRawQuery();
+            if (query != null && !query.isEmpty()) {
+                handleSlice(t, query);
+                return;
+            }
+            long version = rootCategory.getVersion();
+            String etag = "\"" + BOOT_ID + "-" + version + "\"";
             t.getResponseHeaders().set("Content-Type", "application/json");
-            t.getResponseHeaders().set("Cache-Control", "no-cache, no-store, must-revalidate");
-            t.getResponseHeaders().set("Pragma", "no-cache");
-            t.getResponseHeaders().set("Expires", "0");
-            t.sendResponseHeaders(200, response.length);
+            t.getResponseHeaders().set("Cache-Control", "no-cache");
+
+            String ifNoneMatch = t.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+                t.getResponseHeaders().set("ETag", etag);
+                t.sendResponseHeaders(304, -1);
+                t.close();
+                return;
+            }
+
+            Body body = cachedBody;
+            if (body == null || body.version != version) {
+                if (lastSize > CACHE_LIMIT) {
+                    // The tree may change structure while it streams, so no ETag is promised.
+                    t.sendResponseHeaders(200, 0);
+                    try (OutputStream os = t.getResponseBody()) {
+                        lastSize = new InventoryJsonWriter(os, LOCKS.readLock()).write(rootCategory);
+                    }
+                    return;
+                }
+                body = new Body(version, serialize(rootCategory));
+                lastSize = body.bytes.length;
+                if (body.bytes.length <= CACHE_LIMIT) cachedBody = body;
+            }
+
+            t.getResponseHeaders().set("ETag", etag);
+            t.sendResponseHeaders(200, body.bytes.length);
             OutputStream os = t.getResponseBody();
-            os.write(response);
+            os.write(body.bytes);
             os.close();
         }
 
-        private String convertCategoryToJson(ProductCategory category) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("{");
-            sb.append("\"id\": \"").append(category.getName().hashCode()).append("\",");
-            sb.append("\"type\": \"category\",");
-            sb.append("\"name\": \"").append(category.getName()).append("\",");
-            sb.append("\"children\": [");
-            
-            List<ProductComponent> children = category.getChildren();
-            for (int i = 0; i < children.size(); i++) {
-                ProductComponent child = children.get(i);
-                if (child instanceof ProductCategory) {
-                    sb.append(convertCategoryToJson((ProductCategory) child));
-                } else if (child instanceof Product) {
-                    Product p = (Product) child;
-                    sb.append("{");
-                    sb.append("\"id\": \"").append(p.getName().hashCode()).append("\",");
-                    sb.append("\"type\": \"product\",");
-                    sb.append("\"name\": \"").append(p.getName()).append("\",");
-                    sb.append("\"price\": ").append(p.getPrice()).append(",");
-                    sb.append("\"quantity\": ").append(p.getStockLevel()).append(",");
-                    sb.append("\"threshold\": ").append(p.getThreshold());
-                    sb.append("}");
-                }
-                if (i < children.size() - 1) {
-                    sb.append(",");
-                }
-            }
-            
-            sb.append("]");
-            sb.append("}");
-            return sb.toString();
+        /*
+         * One category instead of the whole tree:
+         *   id=N or path=Electronics/Phones   the category (default: root)
+         *   depth=N                           categories more than N levels down are stubs with counts and value
+         *   limit=N, cursor=...               a page of the category's children; follow "nextCursor" for the next
+         *   fields=name,quantity              only these fields ("type" and "children" are always sent)
+         */
+        private void handleSlice(HttpExchange t, String rawQuery) throws IOException {
+            Map<String, String> params = parseQuery(rawQuery);
+            ProductCategory category;
+            LOCKS.readLock().lock();
+            try {
+                category = resolveCategory(params);
+            } finally {
+                LOCKS.readLock().unlock();
+            }
+            if (category == null) {
+                sendJson(t, 404, "{\"status\":\"error\",\"message\":\"Category not found\"}");
+                return;
+            }
+            InventoryJsonWriter.Cursor cursor = null;
+            if (params.containsKey("cursor")) {
+                try {
+                    cursor = InventoryJsonWriter.Cursor.parse(params.get("cursor"));
+                } catch (IllegalArgumentException e) {
+                    sendJson(t, 400, "{\"status\":\"error\",\"message\":\"Invalid cursor\"}");
+                    return;
+                }
+            }
+            int depth = parseIntOrDefault(params.get("depth"), Integer.MAX_VALUE);
+            int limit = Math.max(1, parseIntOrDefault(params.get("limit"), Integer.MAX_VALUE));
+            java.util.Set<String> fields = null;
+            if (params.containsKey("fields")) {
+                fields = new java.util.HashSet<>(java.util.Arrays.asList(params.get("fields").split(",")));
+            }
+
+            // The version is read before writing, so a stale tag only ever costs a full response.
+            String etag = "\"" + BOOT_ID + "-" + category.getVersion() + "-" + Integer.toHexString(rawQuery.hashCode()) + "\"";
+            t.getResponseHeaders().set("Content-Type", "application/json");
+            t.getResponseHeaders().set("Cache-Control", "no-cache");
+            t.getResponseHeaders().set("ETag", etag);
+            String ifNoneMatch = t.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+                t.sendResponseHeaders(304, -1);
+                t.close();
+                return;
+            }
+            t.sendResponseHeaders(200, 0);
+            try (OutputStream os = t.getResponseBody()) {
+                new InventoryJsonWriter(os, LOCKS.readLock()).writeSlice(category, depth, cursor, limit, fields);
+            }
+        }
+
+        // Caller holds the read lock.
+        private static ProductCategory resolveCategory(Map<String, String> params) {
+            String id = params.get("id");
+            if (id != null) {
+                try {
+                    return rootCategory.getIndex().findCategoryById(Integer.parseInt(id.trim()));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            ProductCategory category = rootCategory;
+            String path = params.get("path");
+            if (path == null) return category;
+            for (String segment : path.split("/")) {
+                if (segment.isEmpty()) continue;
+                ProductCategory next = null;
+                for (ProductComponent child : category.getChildren()) {
+                    if (child instanceof ProductCategory && child.getName().equals(segment)) {
+                        next = (ProductCategory) child;
+                        break;
+                    }
+                }
+                if (next == null) return null;
+                category = next;
+            }
+            return category;
+        }
+
+        static byte[] serialize(ProductCategory category) throws IOException {
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream(16 * 1024);
+            LOCKS.readLock().lock();
+            try {
+                new InventoryJsonWriter(bytes, null).write(category);
+            } finally {
+                LOCKS.readLock().unlock();
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    // Server-Sent Events feed of inventory changes. Clients resume with Last-Event-ID (or ?since=N);
+    // if that sequence has already left the feed's buffer they get a 'reset' event and should refetch.
+    static class InventoryStreamHandler implements HttpHandler {
+        private static final long KEEPALIVE_MILLIS = 15000;
+
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            String resumeFrom = t.getRequestHeaders().getFirst("Last-Event-ID");
+            if (resumeFrom == null) {
+                resumeFrom = parseQuery(t.getRequestURI().getRawQuery()).get("since");
+            }
+            long since = feed.getLastSeq();
+            if (resumeFrom != null) {
+                try {
+                    since = Long.parseLong(resumeFrom.trim());
+                } catch (NumberFormatException e) {
+                    // start from the live edge
+                }
+            }
+
+            t.getResponseHeaders().set("Content-Type", "text/event-stream");
+            t.getResponseHeaders().set("Cache-Control", "no-cache");
+            t.sendResponseHeaders(200, 0);
+
+            // Streams are long-lived, so they get their own virtual thread instead of holding a request worker.
+            long from = since;
+            Thread.ofVirtual().name("inventory-stream").start(() -> stream(t, from));
+        }
+
+        private void stream(HttpExchange t, long since) {
+            List<Long> seqs = new ArrayList<>();
+            List<String> events = new ArrayList<>();
+            try (OutputStream os = t.getResponseBody()) {
+                while (true) {
+                    seqs.clear();
+                    events.clear();
+                    StringBuilder sb = new StringBuilder();
+                    if (!feed.awaitAfter(since, KEEPALIVE_MILLIS, seqs, events)) {
+                        since = feed.getLastSeq();
+                        sb.append("id: ").append(since).append("\nevent: reset\ndata: {}\n\n");
+                    } else if (events.isEmpty()) {
+                        sb.append(": keepalive\n\n");
+                    }
+                    for (int i = 0; i < events.size(); i++) {
+                        since = seqs.get(i);
+                        sb.append("id: ").append(since).append("\nevent: change\ndata: ").append(events.get(i)).append("\n\n");
+                    }
+                    os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // client disconnected
+            }
         }
     }
 
     static class ProductTypesHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            Gson gson = new Gson();
             List<String> types = new ArrayList<>();
             for (String key : FACTORIES.keySet()) {
                 types.add(key.substring(0, 1).toUpperCase() + key.substring(1));
             }
-            String json = gson.toJson(types);
+            String json = GSON.toJson(types);
             byte[] response = json.getBytes(StandardCharsets.UTF_8);
             t.getResponseHeaders().set("Content-Type", "application/json");
             t.getResponseHeaders().set("Cache-Control", "no-cache, no-store, must-revalidate");
@@ -153,23 +386,187 @@ public class SimpleWebServer {
         }
     }
 
-    static class StyleHandler implements HttpHandler {
+    static class LowStockHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            File file = new File("src/web/style.css");
-            if (!file.exists()) {
-                t.sendResponseHeaders(404, -1);
-                return;
+            Map<String, String> query = parseQuery(t.getRequestURI().getRawQuery());
+            int offset = parseIntOrDefault(query.get("offset"), 0);
+            int limit = parseIntOrDefault(query.get("limit"), 50);
+
+            List<Product> page;
+            LOCKS.readLock().lock();
+            try {
+                page = rootCategory.getLowStockProducts(offset, limit);
+            } finally {
+                LOCKS.readLock().unlock();
+            }
+
+            List<Map<String, Object>> items = new ArrayList<>();
+            for (Product p : page) {
+                Map<String, Object> item = new java.util.LinkedHashMap<>();
+                item.put("name", p.getName());
+                item.put("quantity", p.getStockLevel());
+                item.put("threshold", p.getThreshold());
+                item.put("state", p.getState().getStateName());
+                items.add(item);
             }
-            byte[] bytes = Files.readAllBytes(file.toPath());
-            t.getResponseHeaders().set("Content-Type", "text/css");
-            t.sendResponseHeaders(200, bytes.length);
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("total", rootCategory.getIndex().lowStockCount());
+            body.put("offset", offset);
+            body.put("items", items);
+
+            byte[] response = GSON.toJson(body).getBytes(StandardCharsets.UTF_8);
+            t.getResponseHeaders().set("Content-Type", "application/json");
+            t.sendResponseHeaders(200, response.length);
             OutputStream os = t.getResponseBody();
-            os.write(bytes);
+            os.write(response);
             os.close();
         }
     }
 
+    /*
+     * Filtered, sorted product listing served from the secondary indexes, e.g.
+     *   /api/products?type=apparel&state=LowStock&maxPrice=50&sort=stock&order=asc&limit=20
+     * type: electronics, apparel, generic; state: InStock, LowStock, OutOfStock (both comma-separated);
+     * sort: price, stock, ratio (stock/threshold); min/max Price, Stock and Ratio; category limits
+     * the results to one subtree; offset and limit page through them.
+     */
+    static class ProductQueryHandler implements HttpHandler {
+        private static final int MAX_LIMIT = 1000;
+
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            Map<String, String> params = parseQuery(t.getRequestURI().getRawQuery());
+            ProductIndex.Query query = new ProductIndex.Query();
+            int limit;
+            try {
+                query.types = names(params.get("type"), ProductIndex.TYPES);
+                query.states = names(params.get("state"), new String[] { "InStock", "LowStock", "OutOfStock" });
+                if (params.containsKey("sort")) query.sort = ProductIndex.Sort.valueOf(params.get("sort").trim().toUpperCase());
+                query.descending = "desc".equalsIgnoreCase(params.get("order"));
+                query.minPrice = bound(params.get("minPrice"), Double.NEGATIVE_INFINITY);
+                query.maxPrice = bound(params.get("maxPrice"), Double.POSITIVE_INFINITY);
+                query.minStock = bound(params.get("minStock"), Double.NEGATIVE_INFINITY);
+                query.maxStock = bound(params.get("maxStock"), Double.POSITIVE_INFINITY);
+                query.minRatio = bound(params.get("minRatio"), Double.NEGATIVE_INFINITY);
+                query.maxRatio = bound(params.get("maxRatio"), Double.POSITIVE_INFINITY);
+            } catch (IllegalArgumentException e) {
+                sendJson(t, 400, "{\"status\":\"error\",\"message\":" + GSON.toJson(e.getMessage()) + "}");
+                return;
+            }
+            query.offset = parseIntOrDefault(params.get("offset"), 0);
+            limit = Math.min(MAX_LIMIT, parseIntOrDefault(params.get("limit"), 50));
+            query.limit = limit + 1;
+
+            List<Product> page;
+            LOCKS.readLock().lock();
+            try {
+                ProductCategory scope = rootCategory;
+                if (params.containsKey("category")) {
+                    scope = rootCategory.findCategoryByName(params.get("category"));
+                    if (scope == null) {
+                        sendJson(t, 404, "{\"status\":\"error\",\"message\":\"Category not found\"}");
+                        return;
+                    }
+                }
+                ProductCategory within = scope;
+                page = rootCategory.getIndex().getProductIndex().query(query, within == rootCategory ? null : within::contains);
+            } finally {
+                LOCKS.readLock().unlock();
+            }
+
+            List<Map<String, Object>> items = new ArrayList<>();
+            for (int i = 0; i < Math.min(limit, page.size()); i++) {
+                Product p = page.get(i);
+                Map<String, Object> item = new java.util.LinkedHashMap<>();
+                item.put("name", p.getName());
+                item.put("type", ProductIndex.TYPES[ProductIndex.typeOf(p)]);
+                item.put("category", p.getParent() != null ? p.getParent().getName() : null);
+                item.put("price", p.getPrice());
+                item.put("quantity", p.getStockLevel());
+                item.put("threshold", p.getThreshold());
+                item.put("state", p.getState().getStateName());
+                items.add(item);
+            }
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("offset", query.offset);
+            body.put("hasMore", page.size() > limit);
+            body.put("items", items);
+            sendJson(t, 200, GSON.toJson(body));
+        }
+
+        // Comma-separated values matched case-insensitively against the allowed names; null means any.
+        private static java.util.Set<String> names(String value, String[] allowed) {
+            if (value == null || value.trim().isEmpty()) return null;
+            java.util.Set<String> result = new java.util.HashSet<>();
+            for (String part : value.split(",")) {
+                String match = null;
+                for (String name : allowed) {
+                    if (name.equalsIgnoreCase(part.trim())) match = name;
+                }
+                if (match == null) throw new IllegalArgumentException("Unknown value: " + part.trim());
+                result.add(match);
+            }
+            return result;
+        }
+
+        private static double bound(String value, double defaultValue) {
+            if (value == null || value.trim().isEmpty()) return defaultValue;
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number: " + value);
+            }
+        }
+    }
+
+    // Name autocomplete: /api/search?prefix=lap&limit=10, optionally type=product or type=category.
+    static class SearchHandler implements HttpHandler {
+        private static final int MAX_LIMIT = 100;
+
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            Map<String, String> params = parseQuery(t.getRequestURI().getRawQuery());
+            String prefix = params.get("prefix");
+            if (prefix == null) {
+                sendJson(t, 400, "{\"status\":\"error\",\"message\":\"prefix is required\"}");
+                return;
+            }
+            int limit = Math.min(MAX_LIMIT, parseIntOrDefault(params.get("limit"), 10));
+            String type = params.get("type");
+            boolean products = type == null || "product".equalsIgnoreCase(type);
+            boolean categories = type == null || "category".equalsIgnoreCase(type);
+
+            List<Map<String, Object>> items = new ArrayList<>();
+            LOCKS.readLock().lock();
+            try {
+                for (ProductComponent match : rootCategory.getIndex().search(prefix, limit, products, categories)) {
+                    Map<String, Object> item = new java.util.LinkedHashMap<>();
+                    item.put("name", match.getName());
+                    item.put("type", match instanceof Product ? "product" : "category");
+                    item.put("category", match.getParent() != null ? match.getParent().getName() : null);
+                    items.add(item);
+                }
+            } finally {
+                LOCKS.readLock().unlock();
+            }
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("prefix", prefix);
+            body.put("items", items);
+            sendJson(t, 200, GSON.toJson(body));
+        }
+    }
+
+    static class StyleHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            if (!ASSETS.serve(t, "style.css")) {
+                t.sendResponseHeaders(404, -1);
+                t.close();
+            }
+        }
+    }
+
     static class ActionHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
@@ -181,224 +578,268 @@ public class SimpleWebServer {
                 if (productName != null) productName = productName.trim();
                 
                 String action = params.get("type");
-                String amountStr = params.get("amount");
-                int amount = 1;
+                String client = clientId(t, params);
 
-                System.out.println("Action : " + action);
+                LOG.debug("Action: {}", action);
 
-                if (amountStr != null) {
-                    try {
-                        amount = Integer.parseInt(amountStr);
-                    } catch (NumberFormatException e) {
-                        amount = 1;
+                boolean stockAction = "buy".equals(action) || "restock".equals(action);
+                Lock lock = stockAction ? LOCKS.readLock() : LOCKS.writeLock();
+                String rejected = null;
+                int status = 400;
+                lock.lock();
+                try {
+                    if (stockAction) {
+                        int amount = params.containsKey("amount") ? wholeNumber(params, "amount") : 1;
+                        applyStockAction(client, action, productName, amount);
+                    } else {
+                        applyStructuralAction(client, action, params, productName);
                     }
+                } catch (IllegalArgumentException e) {
+                    rejected = e.getMessage();
+                } catch (IllegalStateException e) {
+                    // The request was well formed but conflicts with the current inventory.
+                    rejected = e.getMessage();
+                    status = 409;
+                } catch (RuntimeException e) {
+                    LOG.error("Action {} failed: {}", action, e);
+                    rejected = "Internal error";
+                    status = 500;
+                } finally {
+                    lock.unlock();
+                }
+                if (rejected != null) {
+                    Map<String, Object> body = new java.util.LinkedHashMap<>();
+                    body.put("status", "error");
+                    body.put("message", rejected);
+                    sendJson(t, status, GSON.toJson(body));
+                    return;
+                }
+                if ("true".equals(params.get("sync")) && !inventory.Database.sync(rootCategory)) {
+                    sendJson(t, 500, "{\"status\":\"error\",\"message\":\"Applied but not yet saved to disk.\"}");
+                    return;
                 }
 
-                if ("create_product".equals(action)) {
+                String response = "{\"status\":\"success\"}";
+                t.getResponseHeaders().set("Content-Type", "application/json");
+                t.sendResponseHeaders(200, response.length());
+                OutputStream os = t.getResponseBody();
+                os.write(response.getBytes());
+                os.close();
+            }
+        }
 
-                    String productType = params.get("productType");
-                    String parentCategoryName = params.get("parentCategory");
-                    String name = params.get("name");
-                    
-                    if (name != null) name = name.trim();
-                    if (parentCategoryName != null) parentCategoryName = parentCategoryName.trim();
-                    if (productType != null) productType = productType.trim();
+        private void applyStructuralAction(String client, String action, Map<String, String> params, String productName) {
+            if ("create_product".equals(action)) {
+                String productType = required(params, "productType");
+                String parentCategoryName = required(params, "parentCategory");
+                String name = required(params, "name");
+                inventory.Database.checkName(name);
 
-                    int price = Integer.parseInt(params.get("price"));
-                    int stock = Integer.parseInt(params.get("stock"));
-                    int threshold = Integer.parseInt(params.get("threshold"));
-                    String specificParam = params.get("specificParam");
+                int price = wholeNumber(params, "price");
+                int stock = wholeNumber(params, "stock");
+                int threshold = wholeNumber(params, "threshold");
+                String specificParam = params.get("specificParam");
 
-                    IProductFactory factory = FACTORIES.get(productType.toLowerCase());
-                    if (factory == null) {
-                        throw new IllegalArgumentException("Unknown product type: " + productType);
-                    }
+                IProductFactory factory = FACTORIES.get(productType.toLowerCase());
+                if (factory == null) {
+                    throw new IllegalArgumentException("Unknown product type: " + productType);
+                }
+                // Products are looked up, journaled and reloaded by name alone, so names must be unique.
+                if (rootCategory.findProductByName(name) != null) {
+                    throw new IllegalArgumentException("Product '" + name + "' already exists.");
+                }
+                ProductCategory parent = findCategory(rootCategory, parentCategoryName);
+                if (parent == null) {
+                    throw new IllegalArgumentException("Parent category not found: " + parentCategoryName);
+                }
 
-                    Product newProduct;
-                    if (productType.equalsIgnoreCase("electronics")) {
-                        int warranty = Integer.parseInt(specificParam);
-                        newProduct = new inventory.ElectronicProduct(name, price, stock, threshold, warranty);
-                    } else if (productType.equalsIgnoreCase("apparel")) {
-                        newProduct = new inventory.ApparelProduct (name, price, stock, threshold, specificParam);
-                    } else {
-                        newProduct = factory.createProduct(name, price, stock, threshold);
-                    }
+                Product newProduct;
+                if (productType.equalsIgnoreCase("electronics")) {
+                    int warranty = wholeNumber(params, "specificParam");
+                    newProduct = new inventory.ElectronicProduct(name, price, stock, threshold, warranty);
+                } else if (productType.equalsIgnoreCase("apparel")) {
+                    newProduct = new inventory.ApparelProduct (name, price, stock, threshold, specificParam);
+                } else {
+                    newProduct = factory.createProduct(name, price, stock, threshold);
+                }
 
-                    ProductCategory parent = findCategory(rootCategory, parentCategoryName);
-                    if (parent == null) {
-                        throw new IllegalArgumentException("Parent category not found: " + parentCategoryName);
-                    }
+                parent.add(newProduct);
+                addLog("CREATE: " + name + " added to " + parentCategoryName + ".");
+                inventory.Database.commit(rootCategory, List.of(inventory.Database.productRecord(newProduct, parent.getName())));
+            }
+            else if ("create_category".equals(action)) {
+                String name = params.get("name");
+                if (name != null) name = name.trim();
+                
+                String parentName = params.get("parentName");
+                if (parentName != null) parentName = parentName.trim();
 
-                    parent.add(newProduct);
-                    newProduct.registerObs(manager);
-                    addLog("CREATE: " + name + " added to " + parentCategoryName + ".");
-                    inventory.Database.save(rootCategory);
+                if (name == null || !name.matches("^[a-zA-Z0-9\\s-]+$")) {
+                    throw new IllegalArgumentException("Invalid category name. Only letters, numbers, spaces and hyphens are allowed.");
                 }
-                else if ("create_category".equals(action)) {
-                    String name = params.get("name");
-                    if (name != null) name = name.trim();
-                    
-                    String parentName = params.get("parentName");
-                    if (parentName != null) parentName = parentName.trim();
+                inventory.Database.checkName(name);
 
-                    if (name == null || !name.matches("^[a-zA-Z0-9\\s-]+$")) {
-                        throw new IllegalArgumentException("Invalid category name. Only letters, numbers, spaces and hyphens are allowed.");
+                if (findCategoryCaseInsensitive(rootCategory, name) != null) {
+                    throw new IllegalArgumentException("Category '" + name + "' already exists.");
+                }
+                
+                List<String> records = new ArrayList<>();
+                ProductCategory parent = rootCategory;
+                if (parentName != null && !parentName.isEmpty()) {
+                    ProductCategory found = findCategoryCaseInsensitive(rootCategory, parentName);
+                    if (found != null) {
+                        parent = found;
+                    } else {
+                        inventory.Database.checkName(parentName);
+                        ProductCategory typeCategory = new ProductCategory(parentName);
+                        rootCategory.add(typeCategory);
+                        records.add(inventory.Database.categoryRecord(typeCategory, rootCategory.getName()));
+                        parent = typeCategory;
                     }
+                }
+                
+                CommandInterface cmd = new AddCategoryCommand(parent, name);
+                manager.executeCommand(client, cmd);
+                cmd.journal(records, false);
+                
+                addLog("CREATE CATEGORY: " + name + " added to " + parent.getName() + ".");
+                inventory.Database.commit(rootCategory, records);
+            }
+            else if ("register_product_type".equals(action)) {
+                String typeName = params.get("typeName");
+                if (typeName != null) typeName = typeName.trim();
+                
+                if (typeName == null || !typeName.matches("^[a-zA-Z0-9\\s-]+$")) {
+                    throw new IllegalArgumentException("Invalid product type name. Only letters, numbers, spaces and hyphens are allowed.");
+                }
+                inventory.Database.checkName(typeName);
 
-                    if (findCategoryCaseInsensitive(rootCategory, name) != null) {
-                        throw new IllegalArgumentException("Category '" + name + "' already exists.");
-                    }
-                    
-                    ProductCategory parent = rootCategory;
-                    if (parentName != null && !parentName.isEmpty()) {
-                        ProductCategory found = findCategoryCaseInsensitive(rootCategory, parentName);
-                        if (found != null) {
-                            parent = found;
-                        } else {
-                            ProductCategory typeCategory = new ProductCategory(parentName);
-                            rootCategory.add(typeCategory);
-                            parent = typeCategory;
-                        }
-                    }
-                    
-                    CommandInterface cmd = new AddCategoryCommand(parent, name);
-                    manager.executeCommand(cmd);
-                    
-                    addLog("CREATE CATEGORY: " + name + " added to " + parent.getName() + ".");
-                    inventory.Database.save(rootCategory);
-                }
-                else if ("register_product_type".equals(action)) {
-                    String typeName = params.get("typeName");
-                    if (typeName != null) typeName = typeName.trim();
-                    
-                    if (typeName == null || !typeName.matches("^[a-zA-Z0-9\\s-]+$")) {
-                        throw new IllegalArgumentException("Invalid product type name. Only letters, numbers, spaces and hyphens are allowed.");
-                    }
-                    
-                    CommandInterface cmd = new AddProductTypeCommand(FACTORIES, typeName, new GenericProductFactory());
-                    manager.executeCommand(cmd);
+                CommandInterface cmd = new AddProductTypeCommand(FACTORIES, typeName, new GenericProductFactory());
+                manager.executeCommand(client, cmd);
 
-                    if (findCategoryCaseInsensitive(rootCategory, typeName) == null) {
-                         CommandInterface catCmd = new AddCategoryCommand(rootCategory, typeName);
-                         manager.executeCommand(catCmd);
-                    }
-                    
-                    addLog("REGISTER TYPE: " + typeName + " registered.");
-                }
-                else if ("remove_product".equals(action)) {
-                    Product target = findProduct(rootCategory, productName);
-                    if (target != null) {
-                        ProductCategory parent = findParent(rootCategory, target);
-                        if (parent != null) {
-                            CommandInterface cmd = new RemoveProductCommand(parent, target);
-                            manager.executeCommand(cmd);
-                            addLog("REMOVE: Product " + productName + " removed.");
-                            inventory.Database.save(rootCategory);
-                        } else {
-                            throw new IllegalStateException("Parent category not found for product '" + productName + "'.");
-                        }
+                if (findCategoryCaseInsensitive(rootCategory, typeName) == null) {
+                     CommandInterface catCmd = new AddCategoryCommand(rootCategory, typeName);
+                     manager.executeCommand(client, catCmd);
+                     inventory.Database.commit(rootCategory, catCmd, false);
+                }
+                
+                addLog("REGISTER TYPE: " + typeName + " registered.");
+            }
+            else if ("remove_product".equals(action)) {
+                productName = required(params, "product");
+                Product target = findProduct(rootCategory, productName);
+                if (target != null) {
+                    ProductCategory parent = findParent(rootCategory, target);
+                    if (parent != null) {
+                        CommandInterface cmd = new RemoveProductCommand(parent, target);
+                        manager.executeCommand(client, cmd);
+                        addLog("REMOVE: Product " + productName + " removed.");
+                        inventory.Database.commit(rootCategory, cmd, false);
                     } else {
-                        throw new IllegalArgumentException("Product '" + productName + "' not found.");
+                        throw new IllegalStateException("Parent category not found for product '" + productName + "'.");
                     }
+                } else {
+                    throw new IllegalArgumentException("Product '" + productName + "' not found.");
                 }
-                else if ("remove_category".equals(action)) {
-                    String categoryName = params.get("name");
-                    if (categoryName != null) categoryName = categoryName.trim();
-                    
-                    ProductCategory target = findCategoryCaseInsensitive(rootCategory, categoryName);
-                    if (target != null) {
-                        if (target == rootCategory) {
-                             throw new IllegalArgumentException("Cannot remove root category.");
-                        }
-                        ProductCategory parent = findParent(rootCategory, target);
-                        if (parent != null) {
-                            CommandInterface cmd = new RemoveCategoryCommand(parent, target);
-                            manager.executeCommand(cmd);
-                            addLog("REMOVE: Category " + categoryName + " removed.");
-                            inventory.Database.save(rootCategory);
-                        } else {
-                            throw new IllegalStateException("Parent category not found for '" + categoryName + "'.");
-                        }
+            }
+            else if ("remove_category".equals(action)) {
+                String categoryName = required(params, "name");
+                ProductCategory target = findCategoryCaseInsensitive(rootCategory, categoryName);
+                if (target != null) {
+                    if (target == rootCategory) {
+                         throw new IllegalArgumentException("Cannot remove root category.");
+                    }
+                    ProductCategory parent = findParent(rootCategory, target);
+                    if (parent != null) {
+                        CommandInterface cmd = new RemoveCategoryCommand(parent, target);
+                        manager.executeCommand(client, cmd);
+                        addLog("REMOVE: Category " + categoryName + " removed.");
+                        inventory.Database.commit(rootCategory, cmd, false);
                     } else {
-                        throw new IllegalArgumentException("Category '" + categoryName + "' not found.");
+                        throw new IllegalStateException("Parent category not found for '" + categoryName + "'.");
                     }
+                } else {
+                    throw new IllegalArgumentException("Category '" + categoryName + "' not found.");
                 }
-                else if ("remove_product_type".equals(action)) {
-                    String typeName = params.get("typeName");
-                    if (typeName != null) typeName = typeName.trim();
-                    
-                    if (!FACTORIES.containsKey(typeName.toLowerCase())) {
-                        throw new IllegalArgumentException("Product Type '" + typeName + "' not found.");
-                    }
-                    CommandInterface cmd = new RemoveProductTypeCommand(FACTORIES, typeName);
-                    manager.executeCommand(cmd);
-
-                    ProductCategory typeCategory = findCategoryCaseInsensitive(rootCategory, typeName);
-                    if (typeCategory != null) {
-                        ProductCategory parent = findParent(rootCategory, typeCategory);
-                        if (parent != null) {
-                             CommandInterface catCmd = new RemoveCategoryCommand(parent, typeCategory);
-                             manager.executeCommand(catCmd);
-                        }
+            }
+            else if ("remove_product_type".equals(action)) {
+                String typeName = required(params, "typeName");
+                if (!FACTORIES.containsKey(typeName.toLowerCase())) {
+                    throw new IllegalArgumentException("Product Type '" + typeName + "' not found.");
+                }
+                CommandInterface cmd = new RemoveProductTypeCommand(FACTORIES, typeName);
+                manager.executeCommand(client, cmd);
+
+                ProductCategory typeCategory = findCategoryCaseInsensitive(rootCategory, typeName);
+                if (typeCategory != null) {
+                    ProductCategory parent = findParent(rootCategory, typeCategory);
+                    if (parent != null) {
+                         CommandInterface catCmd = new RemoveCategoryCommand(parent, typeCategory);
+                         manager.executeCommand(client, catCmd);
+                         inventory.Database.commit(rootCategory, catCmd, false);
                     }
+                }
 
-                    addLog("REMOVE: Product Type " + typeName + " removed.");
+                addLog("REMOVE: Product Type " + typeName + " removed.");
+            }
+            else if ("undo".equals(action)) {
+                CommandInterface undone = manager.undoLastCommand(client);
+                if (undone != null) {
+                    inventory.Database.commit(rootCategory, undone, true);
                 }
-                else if ("undo".equals(action)) {
-                    manager.undoLastCommand();
-                    inventory.Database.save(rootCategory);
-                } else {
-                    Product target = findProduct(rootCategory, productName);
-
-                    if (target != null) {
-                        CommandInterface cmd = null;
-                        if ("buy".equals(action)) {
-                            cmd = new RemoveStockCommand(target, amount);
-                        } else if ("restock".equals(action)) {
-                            cmd = new AddStockCommand(target, amount);
-                        }
-
-                        if (cmd != null) {
-                            manager.executeCommand(cmd);
-                            inventory.Database.save(rootCategory);
-                        }
-                    }
+            }
+            else if ("redo".equals(action)) {
+                CommandInterface redone = manager.redoLastCommand(client);
+                if (redone != null) {
+                    inventory.Database.commit(rootCategory, redone, false);
                 }
+            }
+            else {
+                throw new IllegalArgumentException("Unknown action: " + action);
+            }
+        }
 
-                String response = "{\"status\":\"success\"}";
-                t.getResponseHeaders().set("Content-Type", "application/json");
-                t.sendResponseHeaders(200, response.length());
-                OutputStream os = t.getResponseBody();
-                os.write(response.getBytes());
-                os.close();
+        // Trimmed value of a parameter the action cannot do without.
+        private static String required(Map<String, String> params, String name) {
+            String value = params.get(name);
+            if (value == null || value.trim().isEmpty()) {
+                throw new IllegalArgumentException("Missing parameter: " + name);
             }
+            return value.trim();
         }
 
-        private ProductCategory findParent(ProductCategory current, ProductComponent target) {
-            for (ProductComponent child : current.getChildren()) {
-                if (child == target) {
-                    return current;
-                }
-                if (child instanceof ProductCategory) {
-                    ProductCategory found = findParent((ProductCategory) child, target);
-                    if (found != null) return found;
-                }
+        private static int wholeNumber(Map<String, String> params, String name) {
+            String value = required(params, name);
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parameter " + name + " must be a whole number: " + value);
             }
-            return null;
         }
 
-        private Product findProduct(ProductCategory category, String name) {
-            for (ProductComponent child : category.getChildren()) {
-                if (child instanceof Product) {
-                    if (((Product) child).getName().equalsIgnoreCase(name)) {
-                        return (Product) child;
-                    }
-                } else if (child instanceof ProductCategory) {
-                    Product found = findProduct((ProductCategory) child, name);
-                    if (found != null) return found;
-                }
+        private void applyStockAction(String client, String action, String productName, int amount) {
+            if (productName == null || productName.isEmpty()) {
+                throw new IllegalArgumentException("Missing parameter: product");
             }
-            return null;
+            if (amount <= 0) {
+                throw new IllegalArgumentException("Amount must be positive.");
+            }
+            Product target = findProduct(rootCategory, productName);
+            if (target == null) {
+                throw new IllegalArgumentException("Product '" + productName + "' not found.");
+            }
+
+            CommandInterface cmd = "buy".equals(action) ? new RemoveStockCommand(target, amount) : new AddStockCommand(target, amount);
+            manager.executeCommand(client, cmd);
+            inventory.Database.commit(rootCategory, cmd, false);
+        }
+
+        private ProductCategory findParent(ProductCategory current, ProductComponent target) {
+            return current.contains(target) ? target.getParent() : null;
+        }
+
+        private Product findProduct(ProductCategory category, String name) {
+            return category.findProductByName(name);
         }
 
         private Map<String, String> parseFormData(String formData) {
@@ -420,53 +861,214 @@ public class SimpleWebServer {
         }
     }
 
-    public static void addLog(String logEntry) {
-        java.time.LocalTime now = java.time.LocalTime.now();
-        logs.add(now.toString().substring(0, 8) + " | " + logEntry);
-        if (logs.size() > 50) {
-            logs.removeFirst();
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> map = new HashMap<>();
+        if (query == null || query.isEmpty()) return map;
+        for (String pair : query.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            if (keyValue.length == 2) {
+                map.put(java.net.URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+                        java.net.URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8));
+            }
         }
+        return map;
     }
 
-    private static class LogsHandler implements HttpHandler {
+    static int parseIntOrDefault(String value, int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // Applies a JSON array of buy/restock actions, e.g. [{"type":"buy","product":"Laptop","amount":2}],
+    // as one MacroCommand: one history entry for undo, one journal write, and a result per item.
+    static class BatchActionHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
-            System.out.println("Log");
-            String response = "[]";
-            if ("GET".equals(t.getRequestMethod())) {
-                Gson gson = new Gson();
-                response = gson.toJson(logs);
+            if (!"POST".equals(t.getRequestMethod())) {
+                t.sendResponseHeaders(405, -1);
+                t.close();
+                return;
             }
 
-            t.getResponseHeaders().set("Content-Type", "application/json");
-            t.sendResponseHeaders(200, response.length());
-            OutputStream os = t.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            com.google.gson.JsonArray items;
+            try {
+                items = com.google.gson.JsonParser.parseString(new String(t.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getAsJsonArray();
+            } catch (RuntimeException e) {
+                sendJson(t, 400, "{\"status\":\"error\",\"message\":\"Body must be a JSON array of actions\"}");
+                return;
+            }
+
+            List<Map<String, Object>> results = new ArrayList<>();
+            List<CommandInterface> commands = new ArrayList<>();
+            List<Map<String, Object>> pending = new ArrayList<>();
+            int failed = 0;
+
+            LOCKS.readLock().lock();
+            try {
+                for (int i = 0; i < items.size(); i++) {
+                    Map<String, Object> result = new java.util.LinkedHashMap<>();
+                    result.put("index", i);
+                    results.add(result);
+
+                    String error = null;
+                    CommandInterface cmd = null;
+                    try {
+                        cmd = batchCommand(items.get(i));
+                    } catch (IllegalArgumentException e) {
+                        error = e.getMessage();
+                    }
+
+                    if (cmd != null) {
+                        commands.add(cmd);
+                        pending.add(result);
+                    } else {
+                        result.put("status", "error");
+                        result.put("message", error);
+                        failed++;
+                    }
+                }
+
+                if (!commands.isEmpty()) {
+                    MacroCommand batch = new MacroCommand(commands);
+                    manager.executeCommand(clientId(t, null), batch);
+                    inventory.Database.commit(rootCategory, batch, false);
+                }
+            } finally {
+                LOCKS.readLock().unlock();
+            }
+            if ("true".equals(parseQuery(t.getRequestURI().getRawQuery()).get("sync")) && !inventory.Database.sync(rootCategory)) {
+                sendJson(t, 500, "{\"status\":\"error\",\"message\":\"Applied but not yet saved to disk.\"}");
+                return;
+            }
+
+            for (int i = 0; i < commands.size(); i++) {
+                CommandInterface cmd = commands.get(i);
+                Map<String, Object> result = pending.get(i);
+                if (cmd instanceof RemoveStockCommand && !((RemoveStockCommand) cmd).wasSold()) {
+                    result.put("status", "error");
+                    result.put("message", "Not enough stock.");
+                    failed++;
+                } else {
+                    result.put("status", "success");
+                }
+            }
+
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("status", failed == 0 ? "success" : "partial");
+            body.put("applied", items.size() - failed);
+            body.put("failed", failed);
+            body.put("results", results);
+            sendJson(t, 200, GSON.toJson(body));
         }
-    }
 
-    private static ProductCategory findCategory(ProductCategory category, String name) {
-        if (category.getName().equals(name)) return category;
+        // Builds the command for one item; an IllegalArgumentException carries that item's error.
+        private static CommandInterface batchCommand(com.google.gson.JsonElement element) {
+            if (!element.isJsonObject()) {
+                throw new IllegalArgumentException("Action must be a JSON object");
+            }
+            com.google.gson.JsonObject item = element.getAsJsonObject();
+            String action;
+            String productName;
+            int amount;
+            try {
+                action = item.has("type") ? item.get("type").getAsString() : null;
+                productName = item.has("product") ? item.get("product").getAsString().trim() : null;
+                amount = item.has("amount") ? item.get("amount").getAsInt() : 1;
+            } catch (RuntimeException e) {
+                // null, an object or array, or a non-numeric amount
+                throw new IllegalArgumentException("Malformed action: type and product must be strings, amount a number.");
+            }
 
-        for (ProductComponent child : category.getChildren()) {
-            if (child instanceof ProductCategory) {
-                ProductCategory found = findCategory((ProductCategory) child, name);
-                if (found != null) return found;
+            Product target = productName == null ? null : rootCategory.findProductByName(productName);
+            if (target == null) {
+                throw new IllegalArgumentException("Product '" + productName + "' not found.");
+            } else if (amount <= 0) {
+                throw new IllegalArgumentException("Amount must be positive.");
+            } else if ("buy".equals(action)) {
+                return new RemoveStockCommand(target, amount);
+            } else if ("restock".equals(action)) {
+                return new AddStockCommand(target, amount);
             }
+            throw new IllegalArgumentException("Unsupported batch action: " + action);
         }
-        return null;
     }
 
-    private static ProductCategory findCategoryCaseInsensitive(ProductCategory category, String name) {
-        if (category.getName().equalsIgnoreCase(name)) return category;
+    static void sendJson(HttpExchange t, int status, String json) throws IOException {
+        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Content-Type", "application/json");
+        t.sendResponseHeaders(status, response.length);
+        OutputStream os = t.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    public static void addLog(String logEntry) {
+        java.time.LocalTime now = java.time.LocalTime.now();
+        logs.append(now.toString().substring(0, 8) + " | " + logEntry);
+    }
+
+    // GET /api/logs returns the retained entries as strings; /api/logs?since=N returns only entries after
+    // sequence N together with the cursor to pass next time.
+    private static class LogsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            if (!"GET".equals(t.getRequestMethod())) {
+                sendJson(t, 200, "[]");
+                return;
+            }
+            String since = parseQuery(t.getRequestURI().getRawQuery()).get("since");
+            if (since == null) {
+                List<String> lines = new ArrayList<>();
+                for (LogBuffer.Entry entry : logs.since(0)) {
+                    lines.add(entry.getText());
+                }
+                sendJson(t, 200, GSON.toJson(lines));
+                return;
+            }
 
-        for (ProductComponent child : category.getChildren()) {
-            if (child instanceof ProductCategory) {
-                ProductCategory found = findCategoryCaseInsensitive((ProductCategory) child, name);
-                if (found != null) return found;
+            long cursor;
+            try {
+                cursor = Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                sendJson(t, 400, "{\"status\":\"error\",\"message\":\"since must be a sequence number\"}");
+                return;
             }
+            // A cursor from before a restart is ahead of the buffer; start over from the oldest entry.
+            if (cursor > logs.getLastSeq()) cursor = 0;
+            List<LogBuffer.Entry> entries = logs.since(cursor);
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("lastSeq", entries.isEmpty() ? Math.max(cursor, 0) : entries.get(entries.size() - 1).getSeq());
+            body.put("truncated", !entries.isEmpty() && entries.get(0).getSeq() > cursor + 1);
+            body.put("entries", entries);
+            sendJson(t, 200, GSON.toJson(body));
         }
-        return null;
+    }
+
+    private static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            List<Map<String, Object>> observers = new ArrayList<>();
+            for (AsyncObserver observer : asyncObservers) {
+                observers.add(observer.metrics());
+            }
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("observers", observers);
+            body.put("history", manager.historyMetrics());
+            body.put("logEventsDropped", Log.getDropped());
+            sendJson(t, 200, GSON.toJson(body));
+        }
+    }
+
+    private static ProductCategory findCategory(ProductCategory category, String name) {
+        ProductCategory found = category.findCategoryByName(name);
+        return found != null && found.getName().equals(name) ? found : null;
+    }
+
+    private static ProductCategory findCategoryCaseInsensitive(ProductCategory category, String name) {
+        return category.findCategoryByName(name);
     }
 }
@@ -3,39 +3,69 @@ package inventory;
 import inventory.CompositePattern.Product;
 
 public class StatePattern {
-    
+    private static final Log LOG = Log.get(StatePattern.class);
+
     public interface State {
-        void handleSale(Product product, int quantity);
+        boolean handleSale(Product product, int quantity);
         void handleRestock(Product product, int quantity);
         String getStateName();
     }
 
-    public static class InStock implements State {
-        @Override
-        public void handleSale(Product product, int quantity) {
-            int currentStock = product.getStockLevel();
-            int newStock = currentStock - quantity;
-            
-            if (newStock < 0) {
-                System.out.println("Error: Not enough stock for " + product.getName());
-                return;
+    // States hold no per-product data, so every product shares these three instances.
+    public static final State OUT_OF_STOCK = new OutOfStock();
+    public static final State LOW_STOCK = new LowStock();
+    public static final State IN_STOCK = new InStock();
+
+    // Transition table, indexed by stock band: 0 = empty, 1 = at or below threshold, 2 = above threshold.
+    private static final State[] BY_BAND = { OUT_OF_STOCK, LOW_STOCK, IN_STOCK };
+    private static final String[][] TRANSITIONS = new String[BY_BAND.length][BY_BAND.length];
+
+    static {
+        for (int from = 0; from < BY_BAND.length; from++) {
+            for (int to = 0; to < BY_BAND.length; to++) {
+                TRANSITIONS[from][to] = "State changed: " + BY_BAND[from].getStateName() + " -> " + BY_BAND[to].getStateName();
             }
+        }
+    }
+
+    public static State forLevel(int stockLevel, int threshold) {
+        return BY_BAND[band(stockLevel, threshold)];
+    }
+
+    private static int band(int stockLevel, int threshold) {
+        if (stockLevel == 0) return 0;
+        return stockLevel <= threshold ? 1 : 2;
+    }
+
+    static State forBand(int band) {
+        return BY_BAND[band];
+    }
+
+    // 0 = OutOfStock, 1 = LowStock, 2 = InStock.
+    static int band(State state) {
+        if (state instanceof OutOfStock) return 0;
+        return state instanceof LowStock ? 1 : 2;
+    }
+
+    // Precomputed message for a state change, so transitions log without building strings.
+    public static String transition(State from, State to) {
+        return TRANSITIONS[band(from)][band(to)];
+    }
 
-            product.setStockLevel(newStock);
-            System.out.println("Sale handled by InStock state. " + quantity + " items sold.");
+    public static class InStock implements State {
+        private InStock() {}
 
-            if (newStock == 0) {
-                product.setState(new OutOfStock());
-            } else if (newStock < product.getThreshold()) {
-                product.setState(new LowStock());
+        @Override
+        public boolean handleSale(Product product, int quantity) {
+            if (!product.trySell(quantity)) {
+                LOG.debug("Not enough stock for {}", product.getName());
+                return false;
             }
+            return true;
         }
         @Override
         public void handleRestock(Product product, int quantity) {
-            int currentStock = product.getStockLevel();
-            int newStock = currentStock + quantity;
-            product.setStockLevel(newStock);
-            System.out.println("Restocked " + product.getName() + " by " + quantity + " units (InStock)");
+            product.addStock(quantity);
         }
         @Override
         public String getStateName() {
@@ -44,36 +74,20 @@ public class StatePattern {
     }
 
     public static class LowStock implements State {
-        @Override
-        public void handleSale(Product product, int quantity) {
-            int currentStock = product.getStockLevel();
-            int newStock = currentStock - quantity;
+        private LowStock() {}
 
-            if (newStock < 0) {
-                System.out.println("Error: Not enough stock for " + product.getName());
-                return;
-            }
-
-            product.setStockLevel(newStock);
-            System.out.println("Sale handled by LowStock state. " + quantity + " items sold. Warning: Stock is low.");
-
-            if (newStock == 0) {
-                product.setState(new OutOfStock());
+        @Override
+        public boolean handleSale(Product product, int quantity) {
+            if (!product.trySell(quantity)) {
+                LOG.debug("Not enough stock for {}", product.getName());
+                return false;
             }
+            return true;
         }
 
         @Override
         public void handleRestock(Product product, int quantity) {
-            int currentStock = product.getStockLevel();
-            int newStock = currentStock + quantity;
-            product.setStockLevel(newStock);
-
-            System.out.println("Restocked " + product.getName() + " by " + quantity + " units (LowStock)");
-
-            if (newStock >= product.getThreshold()) {
-                product.setState(new InStock());
-                System.out.println("State changed: LowStock -> InStock");
-            }
+            product.addStock(quantity);
         }
 
         @Override
@@ -83,24 +97,20 @@ public class StatePattern {
     }
 
     public static class OutOfStock implements State {
+        private OutOfStock() {}
+
         @Override
-        public void handleSale(Product product, int quantity) {
-            System.out.println("Error: Cannot sell " + product.getName() + ". Out of stock");
+        public boolean handleSale(Product product, int quantity) {
+            // A concurrent restock may have landed since this state was read.
+            if (product.getStockLevel() > 0 && product.trySell(quantity)) {
+                return true;
+            }
+            LOG.debug("Cannot sell {}. Out of stock", product.getName());
+            return false;
         }
         @Override
         public void handleRestock(Product product, int quantity) {
-            int newStock = quantity; // was 0
-            product.setStockLevel(newStock);
-
-            System.out.println("Restocked " + product.getName() + " by " + quantity + " units (OutOfStock)");
-
-            if (newStock >= product.getThreshold()) {
-                product.setState(new InStock());
-                System.out.println("State changed: OutOfStock -> InStock");
-            } else {
-                product.setState(new LowStock());
-                System.out.println("State changed: OutOfStock -> LowStock");
-            }
+            product.addStock(quantity);
         }
 
         @Override
@@ -0,0 +1,150 @@
+package inventory;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Dashboard files held in memory, each as raw and gzip-compressed bytes with a strong ETag.
+ *
+ * Files are read once at startup. With watch() they are reloaded when they change on disk, so the
+ * dashboard can be edited without a restart; otherwise requests never touch the disk.
+ */
+public class StaticAssets {
+    private static final Log LOG = Log.get(StaticAssets.class);
+
+    static class Asset {
+        final String contentType;
+        final byte[] raw;
+        final byte[] gzip;
+        final String etag;
+        final String gzipEtag;
+
+        Asset(String contentType, byte[] raw) throws IOException {
+            this.contentType = contentType;
+            this.raw = raw;
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 3 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(raw);
+            }
+            this.gzip = compressed.toByteArray();
+            String hash = digest(raw);
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gz\"";
+        }
+
+        private static String digest(byte[] bytes) {
+            try {
+                return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes), 0, 12);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final Path dir;
+    private volatile String cacheControl;
+    private final Set<String> names;
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+
+    // maxAgeSeconds applies to everything but HTML, which browsers always revalidate so edits show up.
+    public StaticAssets(Path dir, long maxAgeSeconds, String... names) {
+        this.dir = dir;
+        this.cacheControl = "public, max-age=" + maxAgeSeconds;
+        this.names = Set.of(names);
+        for (String name : names) {
+            reload(name);
+        }
+    }
+
+    private void reload(String name) {
+        Path file = dir.resolve(name);
+        try {
+            if (Files.exists(file)) {
+                assets.put(name, new Asset(contentType(name), Files.readAllBytes(file)));
+                LOG.info("Loaded {} into the asset cache", file);
+            }
+        } catch (IOException e) {
+            LOG.error("Error loading {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static String contentType(String name) {
+        if (name.endsWith(".html")) return "text/html; charset=utf-8";
+        if (name.endsWith(".css")) return "text/css; charset=utf-8";
+        if (name.endsWith(".js")) return "text/javascript; charset=utf-8";
+        return "application/octet-stream";
+    }
+
+    // Reloads cached files whenever they are created or modified in the asset directory. Browsers are
+    // told to revalidate every asset from then on, so edits show up on the next load.
+    public void watch() throws IOException {
+        cacheControl = "no-cache";
+        WatchService watcher = dir.getFileSystem().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path) {
+                        String name = event.context().toString();
+                        if (names.contains(name)) reload(name);
+                    }
+                }
+                key.reset();
+            }
+        }, "asset-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Sends the named asset, honouring If-None-Match and Accept-Encoding. Returns false if it is not cached.
+    public boolean serve(HttpExchange t, String name) throws IOException {
+        Asset asset = assets.get(name);
+        if (asset == null) return false;
+
+        String acceptEncoding = t.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+
+        t.getResponseHeaders().set("Content-Type", asset.contentType);
+        t.getResponseHeaders().set("ETag", etag);
+        t.getResponseHeaders().set("Cache-Control", asset.contentType.startsWith("text/html") ? "no-cache" : cacheControl);
+        t.getResponseHeaders().set("Vary", "Accept-Encoding");
+
+        String ifNoneMatch = t.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            t.sendResponseHeaders(304, -1);
+            t.close();
+            return true;
+        }
+
+        byte[] body = gzip ? asset.gzip : asset.raw;
+        if (gzip) t.getResponseHeaders().set("Content-Encoding", "gzip");
+        if ("HEAD".equals(t.getRequestMethod())) {
+            t.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+            t.sendResponseHeaders(200, -1);
+            t.close();
+            return true;
+        }
+        t.sendResponseHeaders(200, body.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(body);
+        }
+        return true;
+    }
+}